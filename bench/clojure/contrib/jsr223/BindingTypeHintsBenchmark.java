@@ -0,0 +1,55 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A script that calls methods of a bound Java object in a loop, with and
+ * without the binding's var tagged with the object's class. Each benchmark
+ * binds its own name, since the tag stays on the var.
+ *
+ * @version 1.2
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BindingTypeHintsBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean typeHints;
+
+	private ClojureScriptEngine engine;
+	private String script;
+
+	@Setup(Level.Trial)
+	public void setUp() throws ScriptException {
+		String name = "request" + (typeHints ? "-hinted" : "-plain");
+		engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("clojure.bindings.type-hints", Boolean.valueOf(typeHints));
+		engine.put(name, new StringBuilder("GET /index.html HTTP/1.1"));
+		script = "(loop [i 0 n 0] (if (< i 100) (recur (inc i) (+ n (.length " + name + ") (.indexOf " + name +
+			" \"/\") (int (.charAt " + name + " (rem i 24))))) n))";
+		engine.eval(script);
+	}
+
+	@Benchmark
+	public Object interopHeavy() throws ScriptException {
+		return engine.eval(script);
+	}
+
+}
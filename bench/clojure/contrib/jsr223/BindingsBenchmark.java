@@ -0,0 +1,63 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of applying bindings before a call and copying vars back after
+ * it, as the number of bindings and of loaded namespaces grows. The script
+ * itself does nothing, so the time is that of the synchronization.
+ *
+ * @version 1.2
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BindingsBenchmark {
+
+	@Param({"0", "10", "100", "1000"})
+	public int bindings;
+
+	@Param({"0", "10", "100"})
+	public int namespaces;
+
+	private ClojureScriptEngine engine;
+	private long counter;
+
+	@Setup(Level.Trial)
+	public void setUp() throws ScriptException {
+		engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		for (int i = 0; i < bindings; i++)
+			engine.put("binding-" + i, Long.valueOf(i));
+		for (int i = 0; i < namespaces; i++)
+			engine.eval("(ns bench-ns-" + i + ") (def a 1) (def b 2) (def c 3) (in-ns 'user)");
+		engine.eval("nil");
+	}
+
+	@Benchmark
+	public Object unchanged() throws ScriptException {
+		return engine.eval("nil");
+	}
+
+	@Benchmark
+	public Object oneChanged() throws ScriptException {
+		engine.put("binding-changed", Long.valueOf(counter++));
+		return engine.eval("nil");
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of one engine serving many threads, each with a context of its
+ * own, with bindings bound on the calling thread or kept in a namespace per
+ * context. Running it with {@code -t 1} and then with more threads shows
+ * how the calls scale.
+ *
+ * @version 1.2
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentEvalBenchmark {
+
+	@Param({"thread-local", "context-namespaces"})
+	public String mode;
+
+	private ClojureScriptEngine engine;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		if (mode.equals("thread-local"))
+			engine.put("clojure.bindings.thread-local", true);
+		else
+			engine.put("clojure.context.namespaces", true);
+	}
+
+	@State(Scope.Thread)
+	public static class Tenant {
+
+		ScriptContext context;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			context = new SimpleScriptContext();
+			context.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+			context.setAttribute("n", Long.valueOf(Thread.currentThread().getId()), ScriptContext.ENGINE_SCOPE);
+		}
+
+	}
+
+	@Benchmark
+	public Object eval(Tenant tenant) throws ScriptException {
+		return engine.eval("(inc n)", tenant.context);
+	}
+
+}
@@ -0,0 +1,59 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A script that makes many small function calls, compiled with and without
+ * direct linking. Each benchmark runs in its own namespace, since functions
+ * compiled with direct linking are called through their class names.
+ *
+ * @version 1.2
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectLinkingBenchmark {
+
+	private static final String SCRIPT =
+		"(defn dl-square [x] (* x x))" +
+		"(defn dl-step [acc x] (+ acc (dl-square x)))" +
+		"(defn dl-sum [n] (loop [i 0 acc 0] (if (< i n) (recur (inc i) (dl-step acc i)) acc)))";
+
+	@Param({ "false", "true" })
+	public boolean directLinking;
+
+	private ClojureScriptEngine engine;
+	private String call;
+
+	@Setup(Level.Trial)
+	public void setUp() throws ScriptException {
+		String ns = "bench.linking-" + directLinking;
+		engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("clojure.compile.direct-linking", Boolean.valueOf(directLinking));
+		engine.eval("(ns " + ns + ") " + SCRIPT);
+		call = "(" + ns + "/dl-sum 1000)";
+		engine.eval(call);
+	}
+
+	@Benchmark
+	public Object invokeHeavy() throws ScriptException {
+		return engine.eval(call);
+	}
+
+}
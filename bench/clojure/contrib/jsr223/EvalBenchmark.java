@@ -0,0 +1,52 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repeated {@code eval()} of a fixed script, through the cache of compiled
+ * scripts and through a {@code Reader}, which is compiled every time.
+ *
+ * @version 1.2
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvalBenchmark {
+
+	private static final String SCRIPT = "(let [xs (range 10)] (reduce + (map inc xs)))";
+
+	private ClojureScriptEngine engine;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+	}
+
+	@Benchmark
+	public Object evalCached() throws ScriptException {
+		return engine.eval(SCRIPT);
+	}
+
+	@Benchmark
+	public Object evalCompiled() throws ScriptException {
+		return engine.eval(new StringReader(SCRIPT));
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls to a function by arity through {@code invokeFunction()} and through
+ * a function handle, and of a function with {@code ^long} hints through the
+ * boxed and primitive paths, by handle and by name.
+ *
+ * @version 1.2
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InvokeBenchmark {
+
+	@Param({"0", "1", "2", "4"})
+	public int arity;
+
+	private ClojureScriptEngine engine;
+	private ClojureFunction handle;
+	private ClojureFunction primitive;
+	private Object[] args;
+	private long x = 7;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.eval("(ns bench-ns)" +
+			"(defn f ([] 0) ([a] a) ([a b] b) ([a b c] c) ([a b c d] d))" +
+			"(defn sq ^long [^long x] (* x x))");
+		handle = engine.getFunction("bench-ns/f");
+		primitive = engine.getFunction("bench-ns/sq");
+		args = new Object[arity];
+		for (int i = 0; i < arity; i++)
+			args[i] = Long.valueOf(i);
+	}
+
+	@Benchmark
+	public Object invokeFunction() throws Exception {
+		return engine.invokeFunction("bench-ns/f", args);
+	}
+
+	@Benchmark
+	public Object invokeHandle() throws ScriptException {
+		return handle.invokeVariadic(args);
+	}
+
+	@Benchmark
+	public Object invokeBoxed() throws ScriptException {
+		return primitive.invoke(x);
+	}
+
+	@Benchmark
+	public long invokePrimitive() throws ScriptException {
+		return primitive.invokeLong(x);
+	}
+
+	@Benchmark
+	public long invokeLongByName() throws Exception {
+		return engine.invokeLong("bench-ns/sq", x);
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A script that prints a thousand lines, to a context writer that flushes
+ * on every line and through buffers of the given size. The output is
+ * discarded, so what is measured is the cost of getting it out.
+ *
+ * @version 1.2
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OutputBenchmark {
+
+	private static final String SCRIPT = "(dotimes [i 1000] (println \"line\" i))";
+
+	@Param({ "0", "8192" })
+	public int bufferSize;
+
+	@Param({ "false", "true" })
+	public boolean channel;
+
+	private ClojureScriptEngine engine;
+
+	@Setup(Level.Trial)
+	public void setUp() throws ScriptException {
+		OutputStream sink = new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+		engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.getContext().setWriter(new PrintWriter(new OutputStreamWriter(sink), true));
+		engine.put("clojure.output.buffer-size", Integer.valueOf(bufferSize));
+		if (channel)
+			engine.put("clojure.output.channel", Channels.newChannel(sink));
+		engine.eval(SCRIPT);
+	}
+
+	@Benchmark
+	public Object println() throws ScriptException {
+		return engine.eval(SCRIPT);
+	}
+
+}
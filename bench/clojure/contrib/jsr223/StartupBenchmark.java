@@ -0,0 +1,51 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold-start costs, each measured once per forked JVM: creating the first
+ * engine, which boots the Clojure runtime, and the first {@code eval()} on
+ * an engine that is already created.
+ *
+ * @version 1.2
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+	private ScriptEngine engine;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		engine = new ClojureScriptEngineFactory().getScriptEngine();
+	}
+
+	@Benchmark
+	public ScriptEngine createEngine() {
+		return new ClojureScriptEngineFactory().getIsolatedScriptEngine();
+	}
+
+	@Benchmark
+	public Object firstEval() throws ScriptException {
+		return engine.eval("(defn first-eval [x] (* x x)) (first-eval 12)");
+	}
+
+}
@@ -27,6 +27,12 @@ public class MultiScopes {
         // execute the same script - but this time pass a different script context
         engine.eval("(println x)", newContext);
         // the above line prints "world"
+
+        // Both scripts above set the same var, user/x. With namespaces per
+        // context, each context gets its own x and may run at the same time.
+        engine.put("clojure.context.namespaces", true);
+        engine.eval("(println x *ns*)", newContext);
+        // the above line prints "world" and the context's namespace
     }
     
 }
@@ -0,0 +1,121 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import clojure.lang.*;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of the namespaces of the Clojure runtime that can be rolled
+ * back to.
+ * <p>
+ * Namespace mappings and aliases are persistent maps, so taking the snapshot
+ * only keeps references to them. The roots of the vars outside the
+ * {@code clojure} namespaces are recorded as well. Rolling back removes the
+ * namespaces created since, taking them off {@code *loaded-libs*} so that
+ * requiring them loads them again, unmaps the names added to the others,
+ * maps again the ones taken away, and restores the recorded roots. The
+ * namespaces of libraries compiled ahead of time, which can't be loaded
+ * twice, are kept.
+ *
+ * @version 1.2
+ */
+final class Baseline {
+
+	private static final Object UNBOUND = new Object();
+
+	private final Map<Namespace, IPersistentMap> mappings = new IdentityHashMap<Namespace, IPersistentMap>();
+	private final Map<Namespace, IPersistentMap> aliases = new IdentityHashMap<Namespace, IPersistentMap>();
+	private final Map<Var, Object> roots = new HashMap<Var, Object>();
+
+	/**
+	 * Takes a snapshot of the runtime as it is now.
+	 */
+	Baseline() {
+		for (ISeq seq = Namespace.all(); seq != null; seq = seq.next()) {
+			Namespace ns = (Namespace) seq.first();
+			IPersistentMap m = ns.getMappings();
+			mappings.put(ns, m);
+			aliases.put(ns, ns.getAliases());
+			if (ns.getName().getName().startsWith("clojure"))
+				continue;
+
+			for (ISeq mseq = m.seq(); mseq != null; mseq = mseq.next()) {
+				Object val = ((IMapEntry) mseq.first()).getValue();
+				if (val instanceof Var && ((Var) val).ns == ns) {
+					Var var = (Var) val;
+					roots.put(var, var.hasRoot() ? var.getRawRoot() : UNBOUND);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rolls the runtime back to the snapshot.
+	 */
+	void restore() {
+		for (ISeq seq = Namespace.all(); seq != null; seq = seq.next()) {
+			Namespace ns = (Namespace) seq.first();
+			IPersistentMap before = mappings.get(ns);
+			if (before == null) {
+				NamespaceLifecycle.unload(ns.getName());
+				continue;
+			}
+
+			IPersistentMap now = ns.getMappings();
+			if (now != before) {
+				for (ISeq mseq = now.seq(); mseq != null; mseq = mseq.next()) {
+					IMapEntry e = (IMapEntry) mseq.first();
+					if (before.valAt(e.getKey()) != e.getValue())
+						ns.unmap((Symbol) e.getKey());
+				}
+				for (ISeq mseq = before.seq(); mseq != null; mseq = mseq.next()) {
+					IMapEntry e = (IMapEntry) mseq.first();
+					Symbol sym = (Symbol) e.getKey();
+					if (ns.getMapping(sym) == null)
+						map(ns, sym, e.getValue());
+				}
+			}
+
+			IPersistentMap aliasesBefore = aliases.get(ns);
+			IPersistentMap aliasesNow = ns.getAliases();
+			if (aliasesNow != aliasesBefore) {
+				for (ISeq aseq = aliasesNow.seq(); aseq != null; aseq = aseq.next()) {
+					IMapEntry e = (IMapEntry) aseq.first();
+					if (aliasesBefore.valAt(e.getKey()) != e.getValue())
+						ns.removeAlias((Symbol) e.getKey());
+				}
+			}
+		}
+
+		for (Map.Entry<Var, Object> entry : roots.entrySet()) {
+			Var var = entry.getKey();
+			Object root = entry.getValue();
+			if (root == UNBOUND) {
+				if (var.hasRoot())
+					var.unbindRoot();
+			} else if (!var.hasRoot() || var.getRawRoot() != root) {
+				var.bindRoot(root);
+			}
+		}
+	}
+
+	private static void map(Namespace ns, Symbol sym, Object val) {
+		if (val instanceof Class)
+			ns.importClass(sym, (Class<?>) val);
+		else if (val instanceof Var)
+			ns.refer(sym, (Var) val);
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import clojure.lang.*;
+
+import javax.script.Bindings;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Copies into a {@code Bindings} the vars that were defined or changed since
+ * the last time it was synchronized.
+ * <p>
+ * New vars are found by comparing each namespace's mappings with the ones
+ * seen before; since those maps are persistent, an unchanged namespace costs
+ * a single identity check. Changes to the root of a var already copied are
+ * caught by a watch on the var, which records it in a log shared by all
+ * trackers. A tracker that falls too far behind the log, or is asked to
+ * synchronize a different {@code Bindings}, copies everything again.
+ *
+ * @version 1.2
+ */
+final class BindingTracker {
+
+	private static final int    LOG_SIZE  = 4096;
+	private static final Var[]  log       = new Var[LOG_SIZE];
+	private static long         head      = 0;
+	private static final Object WATCH_KEY = Keyword.intern("clojure.contrib.jsr223", "binding-tracker");
+
+	private static final IFn WATCH = new AFn() {
+		public Object invoke(Object key, Object ref, Object oldval, Object newval) {
+			if (oldval != newval) {
+				synchronized (log) {
+					log[(int) (++head % LOG_SIZE)] = (Var) ref;
+				}
+			}
+			return null;
+		}
+	};
+
+	private final Map<Namespace, IPersistentMap> mappings = new WeakHashMap<Namespace, IPersistentMap>();
+	private WeakReference<Bindings> target = new WeakReference<Bindings>(null);
+	private long seen;
+
+	/**
+	 * Copies the vars defined or changed since the last call as entries in the
+	 * format namespace/var. Namespaces whose names start with {@code clojure}
+	 * are never copied.
+	 *
+	 * @param bindings   Where to put the vars.
+	 * @param namespaces The names of the namespaces to copy, or {@code null}
+	 *                   for all of them.
+	 */
+	synchronized void collect(Bindings bindings, Collection<String> namespaces) {
+		Var[] changed = null;
+		long current;
+		synchronized (log) {
+			current = head;
+			if (bindings == target.get() && current - seen <= LOG_SIZE) {
+				changed = new Var[(int) (current - seen)];
+				for (int i = 0; i < changed.length; i++)
+					changed[i] = log[(int) ((seen + 1 + i) % LOG_SIZE)];
+			}
+		}
+
+		for (ISeq seq = Namespace.all(); seq != null; seq = seq.next()) {
+			Namespace ns = (Namespace) seq.first();
+			if (!includes(ns, namespaces)) continue;
+
+			IPersistentMap now = ns.getMappings();
+			IPersistentMap last = mappings.get(ns);
+			if (changed != null && now == last) continue;
+
+			for (ISeq mseq = now.seq(); mseq != null; mseq = mseq.next()) {
+				IMapEntry e = (IMapEntry) mseq.first();
+				Object val = e.getValue();
+				if (!(val instanceof Var) || ((Var) val).ns != ns) continue;
+				if (changed == null || last == null || last.valAt(e.getKey()) != val) {
+					Var var = (Var) val;
+					var.addWatch(WATCH_KEY, WATCH);
+					put(bindings, var);
+				}
+			}
+			mappings.put(ns, now);
+		}
+
+		if (changed != null) {
+			for (Var var : changed) {
+				if (includes(var.ns, namespaces))
+					put(bindings, var);
+			}
+		}
+
+		target = new WeakReference<Bindings>(bindings);
+		seen = current;
+	}
+
+	private static boolean includes(Namespace ns, Collection<String> namespaces) {
+		String name = ns.getName().getName();
+		if (name.startsWith("clojure")) return false;
+		return namespaces == null || namespaces.contains(name);
+	}
+
+	private static void put(Bindings bindings, Var var) {
+		if (var.hasRoot())
+			bindings.put(var.ns.getName().getName() + "/" + var.sym.getName(), var.getRawRoot());
+	}
+
+}
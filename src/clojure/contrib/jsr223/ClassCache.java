@@ -0,0 +1,467 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import clojure.lang.AFn;
+import clojure.lang.Compiler;
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.ISeq;
+import clojure.lang.RT;
+import clojure.lang.Var;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A directory of the classes compiled for scripts, kept across restarts.
+ * <p>
+ * Each script gets a directory named after a hash of its text, the namespace
+ * it runs in, the Clojure version, the class path, the compiler options, the
+ * tags the engine gave to binding vars, and the libraries loaded with the
+ * times their sources or jars were last modified, so a change to any of them
+ * makes a new entry. Macros that scripts rather than libraries defined aren't
+ * part of the key: a script that uses one is expanded with the macro as it
+ * was when the entry was stored, unless the macro is defined by the script
+ * itself. The directory holds the class files of the script's top-level
+ * forms and a manifest with their names in source order, and it's written
+ * under a temporary name and then renamed, so other JVMs sharing the cache
+ * see either all of it or nothing.
+ * <p>
+ * A script whose compilation writes classes of its own, such as those of
+ * {@code deftype}, {@code defprotocol} or {@code gen-class}, isn't stored,
+ * since those classes are expected to be found by name at run time; nor is
+ * one with forms that weren't compiled to classes of their own, such as
+ * function definitions under direct linking.
+ * <p>
+ * Once the cache grows past its maximum size, the entries used least
+ * recently are deleted; their manifests are touched on every hit. An entry
+ * whose classes fail to load is deleted, and the script compiled again.
+ *
+ * @version 1.2
+ */
+final class ClassCache {
+
+	private static final String FORMAT   = "1";
+	private static final String MANIFEST = "forms";
+	private static final String TEMP     = "tmp-";
+	private static final long   STALE    = 60 * 60 * 1000L;
+
+	private static final Var LOADED_LIBS = RT.var("clojure.core", "*loaded-libs*");
+	private static final Map<String, String> STAMPS = new ConcurrentHashMap<String, String>();
+
+	private final File root;
+	private final long maxBytes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong stores = new AtomicLong();
+
+	/**
+	 * Creates a cache on the passed directory, which is created if needed.
+	 *
+	 * @param root     The directory of the cache.
+	 * @param maxBytes The size of the class files kept before evicting.
+	 */
+	ClassCache(File root, long maxBytes) {
+		this.root = root;
+		this.maxBytes = maxBytes;
+	}
+
+	File getRoot() {
+		return root;
+	}
+
+	long getMaxBytes() {
+		return maxBytes;
+	}
+
+	long getHitCount() {
+		return hits.get();
+	}
+
+	long getMissCount() {
+		return misses.get();
+	}
+
+	long getStoreCount() {
+		return stores.get();
+	}
+
+	/**
+	 * Returns the key of a script in the current namespace under the
+	 * current compiler settings and the tags of the vars it may use.
+	 */
+	static String key(String ns, String script, String classPath, String tags) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			String[] parts = {
+				FORMAT,
+				RT.var("clojure.core", "clojure-version").invoke().toString(),
+				String.valueOf(classPath),
+				String.valueOf(RT.var("clojure.core", "*warn-on-reflection*").deref()),
+				String.valueOf(RT.var("clojure.core", "*unchecked-math*").deref()),
+				RT.printString(Compiler.COMPILER_OPTIONS.deref()),
+				tags,
+				libraries(),
+				ns,
+				script };
+			for (String part : parts) {
+				digest.update(part.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest())
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Lists the libraries loaded outside clojure, whose versions come with
+	 * Clojure's, each with the time its source was last modified.
+	 */
+	private static String libraries() {
+		Object loaded = LOADED_LIBS.deref();
+		if (loaded instanceof IDeref)
+			loaded = ((IDeref) loaded).deref();
+		StringBuilder libs = new StringBuilder();
+		for (ISeq seq = RT.seq(loaded); seq != null; seq = seq.next()) {
+			String lib = seq.first().toString();
+			if (lib.startsWith("clojure."))
+				continue;
+			String stamp = STAMPS.get(lib);
+			if (stamp == null) {
+				stamp = stamp(lib);
+				STAMPS.put(lib, stamp);
+			}
+			libs.append(lib).append('@').append(stamp).append(' ');
+		}
+		return libs.toString();
+	}
+
+	/*
+	 * Returns the modification times of a library's class and source files,
+	 * or of the jars they're in. A library's files are looked at once, when
+	 * first seen loaded.
+	 */
+	private static String stamp(String lib) {
+		String path = lib.replace('-', '_').replace('.', '/');
+		StringBuilder stamp = new StringBuilder();
+		for (String suffix : new String[] { RT.LOADER_SUFFIX + ".class", ".clj", ".cljc" }) {
+			URL url = RT.baseLoader().getResource(path + suffix);
+			if (url != null)
+				stamp.append(lastModified(url)).append(',');
+		}
+		return stamp.toString();
+	}
+
+	private static long lastModified(URL url) {
+		try {
+			if ("jar".equals(url.getProtocol()))
+				url = ((JarURLConnection) url.openConnection()).getJarFileURL();
+			if ("file".equals(url.getProtocol()))
+				return new File(url.toURI()).lastModified();
+		} catch (IOException e) {
+		} catch (URISyntaxException e) {
+		} catch (IllegalArgumentException e) {
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the forms stored under the key, or {@code null} if there are
+	 * none or they can't be loaded, in which case the entry is deleted. The
+	 * classes are linked, so those that fail verification are found here,
+	 * but each one is initialized the first time its form runs, as when it
+	 * was compiled.
+	 */
+	CompiledForms get(String key) {
+		File dir = new File(root, key);
+		File manifest = new File(dir, MANIFEST);
+		if (!manifest.isFile()) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		try {
+			List<String> lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+			Map<String, byte[]> classes = new HashMap<String, byte[]>();
+			readClasses(dir, "", classes);
+
+			EntryLoader loader = new EntryLoader(classes, RT.baseLoader());
+			List<IFn> forms = new ArrayList<IFn>();
+			for (String name : lines.subList(1, lines.size())) {
+				Class<?> c = Class.forName(name, false, loader);
+				// Getting the constructor links the class.
+				forms.add(new StoredForm(c.getDeclaredConstructor(), dir));
+			}
+
+			manifest.setLastModified(System.currentTimeMillis());
+			hits.incrementAndGet();
+			return new CompiledForms(forms);
+		} catch (Throwable e) {
+			discard(dir);
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Loads a script as {@code CompiledForms.load()} does while writing the
+	 * classes of its forms, then stores them under the key.
+	 */
+	Object load(String key, Reader reader, List<IFn> compiled, long[] executeNanos) {
+		File temp = new File(root, TEMP + UUID.randomUUID());
+		boolean stored = false;
+		temp.mkdirs();
+		try {
+			Object result = CompiledForms.load(reader, compiled, executeNanos, temp.getPath(), null);
+			stored = store(key, temp, compiled);
+			return result;
+		} finally {
+			if (!stored)
+				delete(temp);
+		}
+	}
+
+	/*
+	 * Keeps the classes of the top-level forms and of the functions within
+	 * them, drops the wrappers that Compiler.eval() made around them, and
+	 * gives up on anything else. The entry is then renamed into place,
+	 * unless another JVM got there first.
+	 */
+	private boolean store(String key, File temp, List<IFn> compiled) {
+		if (!temp.isDirectory())
+			return false;
+
+		List<String> names = new ArrayList<String>();
+		for (IFn fn : compiled)
+			names.add(fn.getClass().getName());
+
+		Map<String, byte[]> classes = new HashMap<String, byte[]>();
+		long size = 0;
+		try {
+			readClasses(temp, "", classes);
+			if (!classes.keySet().containsAll(names))
+				return false;
+			for (String name : classes.keySet()) {
+				File file = new File(temp, name.replace('.', File.separatorChar) + ".class");
+				switch (relation(name, names)) {
+				case 0:
+					return false;
+				case 1:
+					size += file.length();
+					break;
+				default:
+					file.delete();
+				}
+			}
+
+			StringBuilder manifest = new StringBuilder().append(size).append('\n');
+			for (String name : names)
+				manifest.append(name).append('\n');
+			Files.write(new File(temp, MANIFEST).toPath(), manifest.toString().getBytes(StandardCharsets.UTF_8));
+
+			// Fails if another JVM stored the script first, or can't be atomic.
+			Files.move(temp.toPath(), new File(root, key).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			return false;
+		}
+
+		stores.incrementAndGet();
+		evict();
+		return true;
+	}
+
+	/*
+	 * Returns 1 for a form's class or one nested in it, 2 for the wrapper of
+	 * a form, and 0 for an unrelated class.
+	 */
+	private static int relation(String name, List<String> forms) {
+		for (String form : forms) {
+			if (name.equals(form) || name.startsWith(form + "$"))
+				return 1;
+			if (form.startsWith(name + "$"))
+				return 2;
+		}
+		return 0;
+	}
+
+	/*
+	 * Deletes the least recently used entries while the cache is too big,
+	 * along with temporary directories left behind by JVMs that died.
+	 */
+	private void evict() {
+		File[] files = root.listFiles();
+		if (files == null)
+			return;
+
+		long now = System.currentTimeMillis();
+		List<File> entries = new ArrayList<File>();
+		final Map<File, Long> used = new HashMap<File, Long>();
+		long total = 0;
+		for (File dir : files) {
+			if (dir.getName().startsWith(TEMP)) {
+				if (now - dir.lastModified() > STALE)
+					delete(dir);
+				continue;
+			}
+			File manifest = new File(dir, MANIFEST);
+			try {
+				BufferedReader r = new BufferedReader(new InputStreamReader(
+					new FileInputStream(manifest), StandardCharsets.UTF_8));
+				try {
+					total += Long.parseLong(r.readLine().trim());
+				} finally {
+					r.close();
+				}
+			} catch (Exception e) {
+				continue;
+			}
+			entries.add(dir);
+			used.put(dir, manifest.lastModified());
+		}
+
+		if (total <= maxBytes)
+			return;
+
+		Collections.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(used.get(a), used.get(b));
+			}
+		});
+		for (File dir : entries) {
+			if (total <= maxBytes)
+				break;
+			long size = 0;
+			try {
+				List<String> lines = Files.readAllLines(new File(dir, MANIFEST).toPath(), StandardCharsets.UTF_8);
+				size = Long.parseLong(lines.get(0).trim());
+			} catch (Exception e) {
+			}
+			if (discard(dir))
+				total -= size;
+		}
+	}
+
+	/*
+	 * Deletes an entry. It's renamed first so no JVM reads an entry that is
+	 * half deleted.
+	 */
+	private boolean discard(File dir) {
+		File doomed = new File(root, TEMP + UUID.randomUUID());
+		if (!dir.renameTo(doomed))
+			return false;
+		delete(doomed);
+		return true;
+	}
+
+	private static void readClasses(File dir, String prefix, Map<String, byte[]> classes)
+	throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new FileNotFoundException(dir.getPath());
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isDirectory())
+				readClasses(file, prefix + name + ".", classes);
+			else if (name.endsWith(".class"))
+				classes.put(prefix + name.substring(0, name.length() - 6), Files.readAllBytes(file.toPath()));
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File f : files)
+				delete(f);
+		file.delete();
+	}
+
+	/*
+	 * Defines the classes of an entry ahead of its parent, so they don't
+	 * clash with classes of the same names compiled by this JVM.
+	 */
+	private static final class EntryLoader extends ClassLoader {
+
+		private final Map<String, byte[]> classes;
+
+		EntryLoader(Map<String, byte[]> classes, ClassLoader parent) {
+			super(parent);
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve)
+		throws ClassNotFoundException {
+			byte[] b = classes.get(name);
+			if (b == null)
+				return super.loadClass(name, resolve);
+
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> c = findLoadedClass(name);
+				if (c == null)
+					c = defineClass(name, b, 0, b.length);
+				if (resolve)
+					resolveClass(c);
+				return c;
+			}
+		}
+
+	}
+
+	/*
+	 * A stored form, instantiated the first time it runs. If its class
+	 * fails to initialize, the entry is deleted so that the script is
+	 * compiled again once it's no longer in memory.
+	 */
+	private final class StoredForm extends AFn {
+
+		private final Constructor<?> constructor;
+		private final File dir;
+		private volatile IFn fn;
+
+		StoredForm(Constructor<?> constructor, File dir) {
+			this.constructor = constructor;
+			this.dir = dir;
+		}
+
+		@Override
+		public Object invoke() {
+			IFn f = fn;
+			if (f == null) {
+				try {
+					f = (IFn) constructor.newInstance();
+				} catch (Throwable e) {
+					discard(dir);
+					throw new IllegalStateException("Can't load " + constructor.getName(), e);
+				}
+				fn = f;
+			}
+			return f.invoke();
+		}
+
+	}
+
+}
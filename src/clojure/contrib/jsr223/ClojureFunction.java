@@ -0,0 +1,287 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import clojure.lang.ArraySeq;
+import clojure.lang.IFn;
+import clojure.lang.Var;
+
+import javax.script.ScriptException;
+
+/**
+ * A handle to a Clojure function, resolved once by
+ * {@code ClojureScriptEngine.getFunction()} and called any number of times.
+ * <p>
+ * Each {@code invoke()} method goes to the function with a fixed number of
+ * arguments, without looking up the name, building a seq of the arguments
+ * or applying the engine's bindings and redirections; a call allocates
+ * nothing on its own. The handle keeps the var, not its value, so it calls
+ * the latest definition of the function.
+ * <p>
+ * Functions whose arguments and return value are hinted {@code ^long} or
+ * {@code ^double} are compiled to Clojure's primitive interfaces; the
+ * {@code invokeLong()} and {@code invokeDouble()} methods call those
+ * without boxing the numbers, and fall back to a boxed call, converting
+ * the result, when the function takes or returns other types.
+ * <p>
+ * Handles can be called from many threads at once.
+ *
+ * @version 1.2
+ */
+public final class ClojureFunction {
+
+	private final Var var;
+
+	ClojureFunction(Var var) {
+		this.var = var;
+	}
+
+	Var getVar() {
+		return var;
+	}
+
+	/**
+	 * Returns the fully-qualified name of the function.
+	 *
+	 * @return The name in the format namespace/name.
+	 */
+	public String getName() {
+		return var.ns.getName().getName() + "/" + var.sym.getName();
+	}
+
+	/**
+	 * Calls the function with no arguments.
+	 *
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public Object invoke()
+	throws ScriptException {
+		try {
+			return var.invoke();
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Calls the function with one argument.
+	 *
+	 * @param arg1 The argument of the function.
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public Object invoke(Object arg1)
+	throws ScriptException {
+		try {
+			return var.invoke(arg1);
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Calls the function with two arguments.
+	 *
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public Object invoke(Object arg1, Object arg2)
+	throws ScriptException {
+		try {
+			return var.invoke(arg1, arg2);
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Calls the function with three arguments.
+	 *
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public Object invoke(Object arg1, Object arg2, Object arg3)
+	throws ScriptException {
+		try {
+			return var.invoke(arg1, arg2, arg3);
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Calls the function with four arguments.
+	 *
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public Object invoke(Object arg1, Object arg2, Object arg3, Object arg4)
+	throws ScriptException {
+		try {
+			return var.invoke(arg1, arg2, arg3, arg4);
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Calls the function with any number of arguments. Up to four arguments
+	 * take the fixed-arity path; more are wrapped in a seq.
+	 *
+	 * @param args The arguments of the function.
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public Object invokeVariadic(Object... args)
+	throws ScriptException {
+		try {
+			return apply(args);
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/*
+	 * Calls the function with the arguments in the array, letting any
+	 * exception through.
+	 */
+	Object apply(Object[] args) {
+		if (args == null)
+			return var.invoke();
+
+		switch (args.length) {
+		case 0: return var.invoke();
+		case 1: return var.invoke(args[0]);
+		case 2: return var.invoke(args[0], args[1]);
+		case 3: return var.invoke(args[0], args[1], args[2]);
+		case 4: return var.invoke(args[0], args[1], args[2], args[3]);
+		default: return var.applyTo(ArraySeq.create(args));
+		}
+	}
+
+	/**
+	 * Calls a function of no arguments that returns a {@code long}.
+	 *
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public long invokeLong()
+	throws ScriptException {
+		try {
+			Object fn = var.deref();
+			if (fn instanceof IFn.L)
+				return ((IFn.L) fn).invokePrim();
+			return ((Number) ((IFn) fn).invoke()).longValue();
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Calls a function of a {@code long} that returns a {@code long}.
+	 *
+	 * @param arg1 The argument of the function.
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public long invokeLong(long arg1)
+	throws ScriptException {
+		try {
+			Object fn = var.deref();
+			if (fn instanceof IFn.LL)
+				return ((IFn.LL) fn).invokePrim(arg1);
+			return ((Number) ((IFn) fn).invoke(arg1)).longValue();
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Calls a function of two {@code long} values that returns a {@code long}.
+	 *
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public long invokeLong(long arg1, long arg2)
+	throws ScriptException {
+		try {
+			Object fn = var.deref();
+			if (fn instanceof IFn.LLL)
+				return ((IFn.LLL) fn).invokePrim(arg1, arg2);
+			return ((Number) ((IFn) fn).invoke(arg1, arg2)).longValue();
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Calls a function of no arguments that returns a {@code double}.
+	 *
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public double invokeDouble()
+	throws ScriptException {
+		try {
+			Object fn = var.deref();
+			if (fn instanceof IFn.D)
+				return ((IFn.D) fn).invokePrim();
+			return ((Number) ((IFn) fn).invoke()).doubleValue();
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Calls a function of a {@code double} that returns a {@code double}.
+	 *
+	 * @param arg1 The argument of the function.
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public double invokeDouble(double arg1)
+	throws ScriptException {
+		try {
+			Object fn = var.deref();
+			if (fn instanceof IFn.DD)
+				return ((IFn.DD) fn).invokePrim(arg1);
+			return ((Number) ((IFn) fn).invoke(arg1)).doubleValue();
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Calls a function of two {@code double} values that returns a
+	 * {@code double}.
+	 *
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 */
+	public double invokeDouble(double arg1, double arg2)
+	throws ScriptException {
+		try {
+			Object fn = var.deref();
+			if (fn instanceof IFn.DDD)
+				return ((IFn.DDD) fn).invokePrim(arg1, arg2);
+			return ((Number) ((IFn) fn).invoke(arg1, arg2)).doubleValue();
+		} catch (Exception e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+}
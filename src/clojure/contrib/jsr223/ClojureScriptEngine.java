@@ -17,29 +17,121 @@ import clojure.lang.*;
 
 import javax.script.*;
 import java.io.*;
+import java.lang.reflect.Modifier;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Implementation of a {@code ScriptEngine} for Clojure.
+ * <p>
+ * An engine may be used from many threads at once. All engines share the
+ * Clojure runtime, so the effect of a script on one thread, such as a new
+ * var, is visible to scripts on the others.
+ * <p>
+ * Where this and the methods below say {@code user}, a context may have a
+ * namespace of its own instead: with {@code clojure.context.namespaces} set
+ * to {@code true}, each context runs its scripts and keeps its unqualified
+ * bindings in its own namespace, which refers {@code clojure.core} and the
+ * public vars of {@code clojure.context.base} ({@code user} by default).
+ * Contexts used at the same time then don't overwrite each other's values.
+ * Contexts with the same {@code clojure.context.tag} attribute share a
+ * namespace by that name.
+ * <p>
+ * Namespaces that scripts create stay until removed. To bound them, set
+ * {@code clojure.namespaces.idle-timeout} to the milliseconds after which
+ * an unused one is removed, or {@code clojure.namespaces.max-count} to the
+ * number to keep, removing the least recently used. A namespace is used by
+ * the calls that run in it and by {@code invokeFunction()} calls to its
+ * functions; an idle time shorter than the longest call may remove the
+ * namespace of a call still running. Namespaces that were there before the
+ * engine are kept, and so are those of contexts and bindings in use.
+ * {@code getNamespaceReport()} estimates the memory held by each namespace.
+ * <p>
+ * Scripts print to the writers of the context, which are flushed on every
+ * newline. For scripts that print a lot, {@code clojure.output.buffer-size}
+ * sets a number of chars that {@code *out*} and {@code *err*} collect before
+ * writing them, and that are written when the call ends in any case. With a
+ * {@code WritableByteChannel} in {@code clojure.output.channel}, {@code *out*}
+ * is encoded in {@code clojure.output.charset} and written to the channel.
+ * <p>
+ * With {@code clojure.profile.reflection} set to {@code true}, the calls of
+ * evaluated and compiled scripts that go through reflection are counted as
+ * they run, and {@code getReflectionReport()} ranks them. Compiling is then
+ * slower, and the class cache is not used.
  *
  * @author Armando Blancas
  * @version 1.2
  */
-class ClojureScriptEngine
+public class ClojureScriptEngine
 	extends AbstractScriptEngine
 	implements Invocable, Compilable {
 
 	private static final Symbol    USER_SYM            = Symbol.create("user");
+	private static final Object    EOF                 = new Object();
 	private static final Var       IN_NS               = RT.var("clojure.core", "in-ns");
 	private static final String    SOURCE_PATH_KEY     = "clojure.source.path";
 	private static final String    COMPILE_PATH_KEY    = "clojure.compile.path";
 	private static final String    WARN_REFLECTION_KEY = "clojure.compile.warn-on-reflection";
+	private static final String    CACHE_SIZE_KEY      = "clojure.eval.cache-size";
+	private static final String    CACHE_EVICTION_KEY  = "clojure.eval.cache-eviction";
+	private static final int       CACHE_SIZE          = 64;
+	private static final String    CLASS_CACHE_KEY     = "clojure.eval.class-cache";
+	private static final String    CLASS_CACHE_SIZE_KEY = "clojure.eval.class-cache.max-size";
+	private static final String    CLASS_RETENTION_KEY = "clojure.eval.class-retention";
+	private static final long      CLASS_CACHE_SIZE    = 64L * 1024 * 1024;
+	private static final String    WRITE_BACK_KEY      = "clojure.bindings.write-back";
+	private static final String    WRITE_BACK_NS_KEY   = "clojure.bindings.write-back.namespaces";
+	private static final String    THREAD_LOCAL_KEY    = "clojure.bindings.thread-local";
+	private static final String    TYPE_HINTS_KEY      = "clojure.bindings.type-hints";
+	private static final String    TYPES_KEY           = "clojure.bindings.types";
+	private static final String    CONTEXT_NS_KEY      = "clojure.context.namespaces";
+	private static final String    CONTEXT_BASE_KEY    = "clojure.context.base";
+	private static final String    NS_IDLE_KEY         = "clojure.namespaces.idle-timeout";
+	private static final String    NS_MAX_KEY          = "clojure.namespaces.max-count";
+	private static final String    EXECUTOR_KEY        = "clojure.async.executor";
+	private static final String    METRICS_LISTENER_KEY = "clojure.metrics.listener";
+	private static final String    OUTPUT_BUFFER_KEY   = "clojure.output.buffer-size";
+	private static final String    OUTPUT_CHANNEL_KEY  = "clojure.output.channel";
+	private static final String    OUTPUT_CHARSET_KEY  = "clojure.output.charset";
+	private static final String    PROFILE_REFLECTION_KEY = "clojure.profile.reflection";
 	private static final String    CLASSPATH           = System.getProperty("java.class.path");
+	private static final ClassLoader RUNTIME_LOADER    = ClojureScriptEngine.class.getClassLoader();
+	// RuntimeClassLoader belongs to the host program, so it can only be known by name here.
+	private static final boolean   ISOLATED            = RUNTIME_LOADER.getClass().getName()
+	                                                         .equals("clojure.contrib.jsr223.RuntimeClassLoader");
 
 	//
 	//private static final String PATH_PROP = "clojure.compile.path";
 	//private static final String REFLECTION_WARNING_PROP = "clojure.compile.warn-on-reflection";
 	private static final String UNCHECKED_MATH_PROP = "clojure.compile.unchecked-math";
+	private static final String DIRECT_LINKING_PROP = "clojure.compile.direct-linking";
+	private static final String ELIDE_META_PROP = "clojure.compile.elide-meta";
+	private static final String LOCALS_CLEARING_PROP = "clojure.compile.disable-locals-clearing";
+
+	private static final Keyword WARN_ON_BOXED = Keyword.intern("warn-on-boxed");
+	private static final Keyword DIRECT_LINKING = Keyword.intern("direct-linking");
+	private static final Keyword ELIDE_META = Keyword.intern("elide-meta");
+	private static final Keyword DISABLE_LOCALS_CLEARING = Keyword.intern("disable-locals-clearing");
+	private static final Keyword TAG = Keyword.intern("tag");
+	private static final Keyword BINDING_TAG = Keyword.intern("clojure.contrib.jsr223", "tag");
 
 	private static final Var compile_path = RT.var("clojure.core", "*compile-path*");
 	private static final Var compile = RT.var("clojure.core", "compile");
@@ -47,6 +139,20 @@ class ClojureScriptEngine
 	private static final Var unchecked_math = RT.var("clojure.core", "*unchecked-math*");
 
 	private final ScriptEngineFactory factory;
+	private final CompiledFormCache cache = new CompiledFormCache(CACHE_SIZE, true);
+	private volatile ClassCache classCache;
+	private volatile ScriptLoaders loaders;
+	private final ReflectionProfiler profiler = new ReflectionProfiler();
+	private final BindingTracker tracker = new BindingTracker();
+	private final Map<String, Var> vars = new ConcurrentHashMap<String, Var>();
+	private final Map<String, FunctionRef> functions = new ConcurrentHashMap<String, FunctionRef>();
+	private final ContextNamespaces contexts = new ContextNamespaces();
+	private final NamespaceLifecycle namespaces = new NamespaceLifecycle();
+	private final EngineMetrics metrics = new EngineMetrics();
+	private volatile int appliedBindings;
+	private volatile Object[] compilerSettings;
+	private Baseline baseline;
+	private Map<String, Object> baselineBindings;
 
 	/**
 	 * Default Constructor.
@@ -69,57 +175,588 @@ class ClojureScriptEngine
 		engineScope.put(SOURCE_PATH_KEY, null);
 		engineScope.put(COMPILE_PATH_KEY, "classes");
 		engineScope.put(WARN_REFLECTION_KEY, Boolean.valueOf(false));
+
+		// Compiler options for eval and compile; null keeps the runtime's own.
+		engineScope.put(UNCHECKED_MATH_PROP, null);
+		engineScope.put(DIRECT_LINKING_PROP, null);
+		engineScope.put(ELIDE_META_PROP, null);
+		engineScope.put(LOCALS_CLEARING_PROP, null);
+
+		// Defaults for the cache of compiled scripts.
+		engineScope.put(CACHE_SIZE_KEY, Integer.valueOf(CACHE_SIZE));
+		engineScope.put(CACHE_EVICTION_KEY, "lru");
+		engineScope.put(CLASS_CACHE_KEY, null);
+		engineScope.put(CLASS_CACHE_SIZE_KEY, Long.valueOf(CLASS_CACHE_SIZE));
+		engineScope.put(CLASS_RETENTION_KEY, null);
+
+		// Defaults for copying vars back into the Engine bindings.
+		engineScope.put(WRITE_BACK_KEY, Boolean.valueOf(true));
+		engineScope.put(WRITE_BACK_NS_KEY, null);
+		engineScope.put(THREAD_LOCAL_KEY, Boolean.valueOf(false));
+		engineScope.put(TYPE_HINTS_KEY, Boolean.valueOf(false));
+		engineScope.put(TYPES_KEY, null);
+
+		// By default every context shares the user namespace.
+		engineScope.put(CONTEXT_NS_KEY, Boolean.valueOf(false));
+		engineScope.put(CONTEXT_BASE_KEY, USER_SYM.getName());
+
+		// Namespaces created by scripts stay unless an eviction policy is set.
+		engineScope.put(NS_IDLE_KEY, null);
+		engineScope.put(NS_MAX_KEY, null);
+
+		// Default executor for asynchronous calls: the common fork-join pool.
+		engineScope.put(EXECUTOR_KEY, null);
+
+		// Measurements are kept by getMetrics(); a listener may also get them.
+		engineScope.put(METRICS_LISTENER_KEY, null);
+
+		// Output goes straight to the context writers unless a buffer size is set.
+		engineScope.put(OUTPUT_BUFFER_KEY, Integer.valueOf(0));
+		engineScope.put(OUTPUT_CHANNEL_KEY, null);
+		engineScope.put(OUTPUT_CHARSET_KEY, "UTF-8");
+
+		// Reflective calls are counted only when profiling is on.
+		engineScope.put(PROFILE_REFLECTION_KEY, Boolean.valueOf(false));
 	}
 
 	/*
 	 * Bindings are interned according to the format namespace/var,
-	 * or user/var if only the var is given.
+	 * or home/var if only the var is given. A var that already holds
+	 * the bound value is left alone. Returns how many vars were set.
+	 * NamespaceBindings are the vars themselves and need no copying.
 	 */
-	private void applyBindings(Bindings bindings) {
+	private int applyBindings(Bindings bindings, String home) {
+		int applied = 0;
+		if (bindings instanceof NamespaceBindings)
+			return applied;
+
+		boolean hints = booleanOption(TYPE_HINTS_KEY, false);
+		Map<?, ?> types = types();
 		for (Map.Entry<String, Object> entry : bindings.entrySet()) {
 		    String key = entry.getKey();
 		    if (key.indexOf('.') == -1) {
-		    	String nsName = "user";
-		    	if (key.indexOf('/') >= 0) {
-		    		String[] names = key.split("/");
-		    		nsName = names[0];
-		    		key = names[1];
-		    	}
+		    	Var var = resolve(key, home);
 		    	Object value = entry.getValue();
-		    	Var.intern(Namespace.findOrCreate(Symbol.create(nsName.intern())), Symbol.create(key.intern()), value);
+		    	if (!var.hasRoot() || var.getRawRoot() != value) {
+		    		if (hints || types != null)
+		    			tag(var, value, (types == null) ? null : types.get(key), hints);
+		    		var.bindRoot(value);
+		    		applied++;
+		    	}
 		    }
 		}
+		return applied;
 	}
 
 	/*
-	 * Bindings are collected in the format namespace/var.
-	 */
-    private void collectBindings(Bindings bindings) {
-        for (ISeq seq = Namespace.all(); seq != null; seq = seq.next()) {
-            Namespace ns = (Namespace) seq.first();
-            String nsName = ns.toString();
-            if (nsName.startsWith("clojure")) continue;
-
-	        for (ISeq mseq = ns.getMappings().seq(); mseq != null; mseq = mseq.next()) {
-	            IMapEntry e = (IMapEntry) mseq.first();
-	            String k = e.getKey().toString();
-	            Object val = e.getValue();
-	            if (val.toString().startsWith("#'clojure")) continue;
-            	if (val instanceof Var) {
-            		val = ((Var) val).deref();
-                	bindings.put(nsName + "/" + k, val);
-            	}
-	        }
-        }
-    }
+	 * Tags the var of a binding with the type declared for its key in
+	 * clojure.bindings.types or, if clojure.bindings.type-hints is on, with
+	 * the class of its value, so scripts call the value's methods without
+	 * reflection. Only public classes that scripts can load are used. A
+	 * later value that the tag doesn't fit widens it to a type they share,
+	 * or takes it off, and empties the cache of compiled scripts, which may
+	 * cast to the old tag. Tags given by an engine are marked as such in the
+	 * var's metadata; a tag given to the var by a script is left alone.
+	 */
+	private void tag(Var var, Object value, Object declared, boolean hints) {
+		synchronized (var) {
+			IPersistentMap meta = var.meta();
+			Object current = RT.get(meta, TAG);
+			Class<?> tagged = (current != null && current == RT.get(meta, BINDING_TAG)) ? (Class<?>) current : null;
+			if (tagged == null && current != null)
+				return;
+
+			Class<?> type;
+			if (tagged == null) {
+				if (declared != null)
+					type = (declared instanceof Class) ? (Class<?>) declared : RT.classForName(declared.toString().trim());
+				else
+					type = (value == null || !hints) ? null : visible(value.getClass());
+				if (type == null)
+					return;
+				if (value != null && !type.isInstance(value))
+					type = common(type, value.getClass());
+			} else {
+				if (value == null || tagged.isInstance(value))
+					return;
+				type = common(tagged, value.getClass());
+				cache.clear();
+			}
+
+			if (type == null)
+				var.setMeta(meta.without(TAG).without(BINDING_TAG));
+			else
+				var.setMeta(meta.assoc(TAG, type).assoc(BINDING_TAG, type));
+		}
+	}
+
+	/*
+	 * Returns the tags given to the vars of bindings, in a stable order, for
+	 * the key of the class cache: code compiled against them casts to them.
+	 */
+	private String bindingTypes() {
+		List<String> list = new ArrayList<String>();
+		for (Var var : vars.values()) {
+			Object tag = RT.get(var.meta(), BINDING_TAG);
+			if (tag != null)
+				list.add(var + "=" + ((Class<?>) tag).getName());
+		}
+		Collections.sort(list);
+		return list.toString();
+	}
+
+	private Map<?, ?> types() {
+		Object value = get(TYPES_KEY);
+		return (value instanceof Map) ? (Map<?, ?>) value : null;
+	}
+
+	/*
+	 * Returns the closest public class of a class that scripts can load by
+	 * name, or else its richest such interface, or null if there is none.
+	 */
+	private static Class<?> visible(Class<?> c) {
+		return common(c, c);
+	}
+
+	/*
+	 * Returns the closest superclass of the tag that also fits the class,
+	 * or else the interface of the tag with the most methods that does, or
+	 * null if there is none but Object.
+	 */
+	private static Class<?> common(Class<?> tag, Class<?> c) {
+		for (Class<?> k = tag; k != null && k != Object.class; k = k.getSuperclass())
+			if (fits(k, c))
+				return k;
+		Class<?> best = null;
+		for (Class<?> k = tag; k != null; k = k.getSuperclass())
+			for (Class<?> i : k.getInterfaces())
+				if (fits(i, c) && (best == null || i.getMethods().length > best.getMethods().length))
+					best = i;
+		return best;
+	}
+
+	private static boolean fits(Class<?> type, Class<?> c) {
+		if (!type.isAssignableFrom(c) || !Modifier.isPublic(type.getModifiers()))
+			return false;
+		try {
+			return Class.forName(type.getName(), false, RT.baseLoader()) == type;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Pushes a frame that redirects the standard streams to the context and
+	 * applies its bindings, either to the roots of their vars or, when they
+	 * are thread-local, as part of the same frame. Callers must leave it
+	 * through exit() with the buffers returned, if output is buffered.
+	 * An isolated runtime must define and load classes through its own class
+	 * loader rather than the caller's context class loader.
+	 */
+	private OutputBuffer[] enter(ScriptContext context)
+	throws ScriptException {
+		boolean threadLocal = booleanOption(THREAD_LOCAL_KEY, false);
+		OutputBuffer[] buffers = null;
+		String home = home(context).getName();
+		evictNamespaces(home, false);
+
+		try {
+			buffers = outputBuffers(context);
+			Associative frame =
+				RT.map(RT.CURRENT_NS, RT.CURRENT_NS.deref(),
+					   RT.IN, new LineNumberingPushbackReader(context.getReader()),
+					   RT.OUT, (buffers == null) ? context.getWriter() : buffers[0],
+					   RT.ERR, (buffers == null) ? context.getErrorWriter() : buffers[1]);
+			frame = compileOptions(frame, null);
+			// Forms run outside the compiler's own binding of the loader, and
+			// defprotocol and deftype define their classes through it.
+			ClassLoader loader = ISOLATED ? new DynamicClassLoader(RUNTIME_LOADER) : RT.makeClassLoader();
+			ScriptLoaders scriptLoaders = configureLoaders();
+			if (scriptLoaders != null)
+				loader = scriptLoaders.next(ISOLATED ? loader : RT.baseLoader());
+			frame = frame.assoc(Compiler.LOADER, loader);
+			if (threadLocal)
+				frame = bindThreadLocal(context, frame, home);
+			Var.pushThreadBindings(frame);
+		} catch (Exception e) {
+			close(buffers);
+			throw failure(e);
+		}
+
+		if (!threadLocal) {
+			try {
+				applyBindings(context, home);
+			} catch (Exception e) {
+				exit(buffers);
+				throw failure(e);
+			}
+		}
+		return buffers;
+	}
+
+	/*
+	 * Writes out what the call left in the output buffers and pops the frame
+	 * pushed by enter().
+	 */
+	private void exit(OutputBuffer[] buffers) {
+		try {
+			close(buffers);
+		} finally {
+			Var.popThreadBindings();
+		}
+	}
+
+	/*
+	 * Raises the first error writing the output of a call that otherwise
+	 * went well; the buffers keep it after they're closed.
+	 */
+	private void checkOutput(OutputBuffer[] buffers)
+	throws ScriptException {
+		if (buffers == null)
+			return;
+		for (OutputBuffer buffer : buffers)
+			if (buffer != null && buffer.getError() != null)
+				throw failure(buffer.getError());
+	}
+
+	private static void close(OutputBuffer[] buffers) {
+		if (buffers == null)
+			return;
+		for (OutputBuffer buffer : buffers)
+			if (buffer != null)
+				buffer.close();
+	}
+
+	/*
+	 * Creates the buffers for *out* and *err* if a buffer size is set; *out*
+	 * goes to the configured channel if there is one, else to the writer of
+	 * the context. Returns null if output isn't buffered.
+	 */
+	private OutputBuffer[] outputBuffers(ScriptContext context) {
+		Object value = get(OUTPUT_BUFFER_KEY);
+		int size = 0;
+		if (value instanceof Number)
+			size = ((Number) value).intValue();
+		else if (value != null)
+			size = Integer.parseInt(value.toString().trim());
+		if (size <= 0)
+			return null;
+
+		OutputBuffer[] buffers = new OutputBuffer[2];
+		value = get(OUTPUT_CHANNEL_KEY);
+		if (value instanceof WritableByteChannel) {
+			Object charset = get(OUTPUT_CHARSET_KEY);
+			buffers[0] = new OutputBuffer((WritableByteChannel) value,
+				(charset instanceof Charset) ? (Charset) charset
+				                             : Charset.forName((charset == null) ? "UTF-8" : charset.toString()),
+				size);
+		} else {
+			buffers[0] = new OutputBuffer(context.getWriter(), size);
+		}
+		buffers[1] = new OutputBuffer(context.getErrorWriter(), size);
+		return buffers;
+	}
+
+	/*
+	 * Adds the Global bindings of the context, then its Engine bindings, to a
+	 * frame of thread bindings. Their vars are made dynamic; code compiled
+	 * while they were not would read their roots, so the cache is cleared
+	 * when that happens. No root is set from the values, which belong to
+	 * this call only.
+	 */
+	private Associative bindThreadLocal(ScriptContext context, Associative frame, String home) {
+		long start = System.nanoTime();
+		int applied = 0;
+		int[] scopes = { ScriptContext.GLOBAL_SCOPE, ScriptContext.ENGINE_SCOPE };
+		boolean hints = booleanOption(TYPE_HINTS_KEY, false);
+		Map<?, ?> types = types();
+		for (int scope : scopes) {
+			Bindings bindings = context.getBindings(scope);
+			if (bindings == null || bindings instanceof NamespaceBindings)
+				continue;
+
+			for (Map.Entry<String, Object> entry : bindings.entrySet()) {
+				String key = entry.getKey();
+				if (key.indexOf('.') == -1) {
+					Var var = resolve(key, home);
+					if (!var.isDynamic()) {
+						var.setDynamic();
+						cache.clear();
+					}
+					if (hints || types != null)
+						tag(var, entry.getValue(), (types == null) ? null : types.get(key), hints);
+					frame = frame.assoc(var, entry.getValue());
+					applied++;
+				}
+			}
+		}
+		bindingsApplied(applied, start);
+		return frame;
+	}
+
+	/*
+	 * Applies the Global bindings of the context, then its Engine bindings.
+	 */
+	private void applyBindings(ScriptContext context, String home) {
+		long start = System.nanoTime();
+		int applied = 0;
+
+		Bindings globalScope = context.getBindings(ScriptContext.GLOBAL_SCOPE);
+		if (globalScope != null)
+			applied += applyBindings(globalScope, home);
+
+		Bindings engineScope = context.getBindings(ScriptContext.ENGINE_SCOPE);
+		if (engineScope != null)
+			applied += applyBindings(engineScope, home);
+
+		bindingsApplied(applied, start);
+	}
+
+	private void bindingsApplied(int applied, long start) {
+		long nanos = System.nanoTime() - start;
+		appliedBindings = applied;
+		metrics.bindingsApplied(nanos);
+		MetricsListener listener = listener();
+		if (listener != null)
+			listener.bindingsApplied(applied, nanos);
+	}
+
+	/*
+	 * Finds or interns the var for a binding key, in the home namespace if
+	 * the key doesn't name one. Resolved vars are cached for as long as
+	 * their namespace is still there and still maps them. A var that the
+	 * home namespace refers from its base gives way to one of its own.
+	 */
+	private Var resolve(String key, String home) {
+		String qualified = (key.indexOf('/') >= 0) ? key : home + "/" + key;
+		Var var = vars.get(qualified);
+		if (var != null && Namespace.find(var.ns.getName()) == var.ns && var.ns.getMapping(var.sym) == var)
+			return var;
+
+		String nsName = home;
+		String name = key;
+		if (key.indexOf('/') >= 0) {
+			String[] names = key.split("/");
+			nsName = names[0];
+			name = names[1];
+		}
+		Namespace ns = Namespace.findOrCreate(Symbol.create(nsName.intern()));
+		Symbol sym = Symbol.create(name.intern());
+		Object mapping = ns.getMapping(sym);
+		if (mapping instanceof Var && ((Var) mapping).ns != ns && !ns.getName().equals(USER_SYM))
+			ns.unmap(sym);
+		var = Var.intern(ns, sym);
+		vars.put(qualified, var);
+		return var;
+	}
+
+	/*
+	 * Returns the name of the namespace where a context's scripts run and
+	 * its unqualified bindings go: the namespace of its Engine bindings if
+	 * they're NamespaceBindings, else user, or the context's own namespace
+	 * when clojure.context.namespaces is true. The namespaces of contexts
+	 * and bindings no longer in use are removed along the way.
+	 */
+	private Symbol home(ScriptContext context) {
+		List<Namespace> removed = contexts.expunge();
+		if (!removed.isEmpty())
+			forget(removed);
+
+		Bindings engineScope = context.getBindings(ScriptContext.ENGINE_SCOPE);
+		if (engineScope instanceof NamespaceBindings)
+			return Symbol.intern(((NamespaceBindings) engineScope).getNamespace());
+		if (!booleanOption(CONTEXT_NS_KEY, false))
+			return USER_SYM;
+
+		Object base = get(CONTEXT_BASE_KEY);
+		return contexts.namespaceOf(context, (base == null) ? null : base.toString());
+	}
+
+	private void forget(Collection<Namespace> removed) {
+		Iterator<Var> it = vars.values().iterator();
+		while (it.hasNext())
+			if (removed.contains(it.next().ns))
+				it.remove();
+	}
+
+	/*
+	 * Records the use of the home namespace and, under an eviction policy,
+	 * removes the namespaces idle for too long or beyond the maximum count,
+	 * once it's time to look or when forced. Neither user, the base of
+	 * context namespaces nor the home namespace is removed. Cached scripts
+	 * may refer to the vars of removed namespaces, so the cache is emptied.
+	 */
+	private int evictNamespaces(String home, boolean force) {
+		if (home != null)
+			namespaces.touch(home);
+
+		long idle = -1;
+		Object value = get(NS_IDLE_KEY);
+		if (value instanceof Number)
+			idle = ((Number) value).longValue();
+		else if (value != null)
+			idle = Long.parseLong(value.toString().trim());
+		int max = -1;
+		value = get(NS_MAX_KEY);
+		if (value instanceof Number)
+			max = ((Number) value).intValue();
+		else if (value != null)
+			max = Integer.parseInt(value.toString().trim());
+		if ((idle < 0 && max < 0) || !(force || namespaces.due(idle)))
+			return 0;
+
+		Set<Symbol> keep = new HashSet<Symbol>();
+		keep.add(USER_SYM);
+		Object base = get(CONTEXT_BASE_KEY);
+		if (base != null)
+			keep.add(Symbol.intern(base.toString()));
+		if (home != null)
+			keep.add(Symbol.intern(home));
+		List<Namespace> removed = namespaces.evict(idle, max, keep);
+		if (!removed.isEmpty()) {
+			forget(removed);
+			cache.clear();
+		}
+		return removed.size();
+	}
+
+	/**
+	 * Removes the namespaces left idle, as set by the properties
+	 * {@code clojure.namespaces.idle-timeout} and
+	 * {@code clojure.namespaces.max-count}, without waiting for the next
+	 * call to do it. Does nothing if neither is set.
+	 *
+	 * @return The number of namespaces removed.
+	 */
+	public int evictIdleNamespaces() {
+		return evictNamespaces(null, true);
+	}
+
+	/**
+	 * Returns the number of namespaces removed for being idle.
+	 *
+	 * @return The count of namespaces evicted since this engine was created.
+	 */
+	public long getEvictedNamespaceCount() {
+		return namespaces.getEvictedCount();
+	}
+
+	/**
+	 * Returns the namespaces outside {@code clojure}, the largest first, with
+	 * an estimate of the memory they hold. Each one is a map with these keys:
+	 * <ul>
+	 * <li>{@code namespace}: its name.</li>
+	 * <li>{@code vars}: an {@code Integer} with the number of its own vars.</li>
+	 * <li>{@code bytes}: a {@code Long} with the approximate size of its
+	 * mappings and the values of its vars; values shared with other
+	 * namespaces count in each one.</li>
+	 * <li>{@code idleMillis}: a {@code Long} with the time since this engine
+	 * last used it, or {@code null} if it hasn't.</li>
+	 * <li>{@code evictable}: whether it may be removed when idle.</li>
+	 * </ul>
+	 *
+	 * @return A map per namespace.
+	 */
+	public List<Map<String, Object>> getNamespaceReport() {
+		return namespaces.report();
+	}
+
+	/**
+	 * Removes the namespace of a context, along with its vars, when
+	 * {@code clojure.context.namespaces} is {@code true}. The namespace of a
+	 * context is otherwise removed once the context has been garbage
+	 * collected, unless the context has a {@code clojure.context.tag}.
+	 *
+	 * @param context A context previously passed to this engine.
+	 * @return {@code true} if the context had a namespace.
+	 */
+	public boolean releaseContext(ScriptContext context) {
+		if (context == null)
+			throw new NullPointerException("context is null");
+
+		Namespace ns = contexts.release(context);
+		if (ns == null)
+			return false;
+		forget(Collections.singleton(ns));
+		return true;
+	}
+
+	/**
+	 * Returns how many vars had their values set from the Global and Engine
+	 * bindings in the most recent {@code eval()} or {@code invokeFunction()}
+	 * call. Bindings whose values were already held by their vars are not
+	 * counted.
+	 *
+	 * @return The number of bindings applied by the last call.
+	 */
+	public int getAppliedBindingCount() {
+		return appliedBindings;
+	}
+
+	/*
+	 * Bindings are collected in the format namespace/var. Only the vars
+	 * defined or changed since the last call are copied.
+	 */
+	private void collectBindings(ScriptContext context) {
+		if (context.getBindings(ScriptContext.GLOBAL_SCOPE) == null)
+			return;
+
+		long start = System.nanoTime();
+		String home = booleanOption(CONTEXT_NS_KEY, false) ? home(context).getName() : null;
+		collectBindings(context.getBindings(ScriptContext.ENGINE_SCOPE), home);
+		long nanos = System.nanoTime() - start;
+		metrics.bindingsCollected(nanos);
+		MetricsListener listener = listener();
+		if (listener != null)
+			listener.bindingsCollected(nanos);
+	}
+
+	/*
+	 * A context with a namespace of its own gets only the vars of that
+	 * namespace, unless clojure.bindings.write-back.namespaces says otherwise.
+	 */
+	private void collectBindings(Bindings bindings, String home) {
+		if (bindings instanceof NamespaceBindings || !booleanOption(WRITE_BACK_KEY, true))
+			return;
+
+		Object value = get(WRITE_BACK_NS_KEY);
+		Collection<String> namespaces = null;
+		if (value instanceof Collection) {
+			namespaces = new HashSet<String>();
+			for (Object ns : (Collection<?>) value)
+				namespaces.add(ns.toString());
+		} else if (value != null) {
+			namespaces = new HashSet<String>();
+			for (String ns : value.toString().split(","))
+				namespaces.add(ns.trim());
+		} else if (home != null) {
+			namespaces = Collections.singleton(home);
+		}
+
+		tracker.collect(bindings, namespaces);
+	}
 
 	/**
 	 * {@inheritDoc}
 	 * <p>
-	 * Returns an instance of SimpleBindings.
+	 * Returns an instance of {@code NamespaceBindings} backed by a new
+	 * namespace of its own, which refers {@code clojure.core} and the public
+	 * vars that the namespace named by {@code clojure.context.base} has at
+	 * that moment. A context with these as its Engine bindings runs its
+	 * scripts in that namespace, in place of {@code user} or its context
+	 * namespace. The entries are the vars themselves, so nothing is copied
+	 * in or out of them by {@code eval()} and {@code invokeFunction()};
+	 * other {@code Bindings} implementations, such as {@code SimpleBindings},
+	 * are still copied. The namespace is removed once the bindings are no
+	 * longer reachable.
 	 */
 	public Bindings createBindings() {
-		return new SimpleBindings();
+		List<Namespace> removed = contexts.expunge();
+		if (!removed.isEmpty())
+			forget(removed);
+
+		Object base = get(CONTEXT_BASE_KEY);
+		return contexts.bindings((base == null) ? null : base.toString());
 	}
 
 	/**
@@ -137,14 +774,60 @@ class ClojureScriptEngine
 	 * 3- The Clojure runtime is set to the {@code user} namespace in order to provide
 	 *    consistency with the REPL.
 	 * <p>
+	 * After the script runs, the vars it defined or changed are copied to the Engine
+	 * bindings in the format namespace/var. The property
+	 * {@code clojure.bindings.write-back} turns this off when {@code false}, and
+	 * {@code clojure.bindings.write-back.namespaces} limits it to a collection or
+	 * comma-separated list of namespace names.
+	 * <p>
+	 * When {@code clojure.bindings.thread-local} is {@code true}, the bindings are
+	 * bound to their vars on the calling thread only, for the length of the call,
+	 * so concurrent calls with different contexts don't see each other's values.
+	 * Defaults to {@code Boolean false}, which sets the roots of the vars: calls
+	 * running at the same time with different values for a binding then see
+	 * whichever was set last, unless each context has its own namespace.
+	 * <p>
+	 * With {@code clojure.bindings.type-hints} set to {@code true}, the var of
+	 * a binding is tagged with the class of its value, so that scripts call
+	 * its methods without reflection. The property {@code clojure.bindings.types}
+	 * may instead map binding names to the classes, or class names, to tag
+	 * them with. A later value of another type widens the tag to a type both
+	 * share, or removes it, and the cached scripts are compiled again.
+	 * <p>
 	 * For consistency with the REPL, redirect {@code *err* } to a {@code PrintWriter}.
+	 * <p>
+	 * The compiled forms of the script are cached by its text and the namespace
+	 * it runs in, so a later call with the same script runs them again without
+	 * reading or compiling. These properties control the cache:
+	 * <p>
+	 * {@code clojure.eval.cache-size} The maximum number of scripts to keep;
+	 * zero turns the cache off. Defaults to {@code Integer 64}.
+	 * <p>
+	 * {@code clojure.eval.cache-eviction} Which script to drop when the cache
+	 * is full: {@code "lru"} for the least recently used or {@code "fifo"} for
+	 * the oldest one. Defaults to {@code "lru"}.
+	 * <p>
+	 * Cached code keeps referring to the vars it was compiled against; call
+	 * {@code clearCache()} after taking namespaces away with {@code remove-ns}.
+	 * <p>
+	 * Clojure keeps the classes it compiles until the heap runs short. With
+	 * {@code clojure.eval.class-retention} set to a number, each call compiles
+	 * under a class loader of its own, and the classes of the calls before the
+	 * last ones, up to that number, are unloaded once scripts and the cache no
+	 * longer refer to them. {@code getMetrics()} reports the class loaders
+	 * still alive, along with the loaded classes and the metaspace used.
 	 */
-	public Object eval(String script, ScriptContext context)
+	public Object eval(final String script, ScriptContext context)
 	throws ScriptException {
 		if (script == null)
 			throw new NullPointerException("script is null");
 
-		return eval(new StringReader(script), context);
+		final long[] compileNanos = new long[1];
+		return run(context, compileNanos, new AFn() {
+			public Object invoke() {
+				return loadCached(script, compileNanos);
+			}
+		});
 	}
 
 	/**
@@ -162,46 +845,504 @@ class ClojureScriptEngine
 	 * 3- The Clojure runtime is set to the {@code user} namespace in order to provide
 	 *    consistency with the REPL.
 	 * <p>
+	 * After the script runs, the vars it defined or changed are copied to the Engine
+	 * bindings in the format namespace/var. The property
+	 * {@code clojure.bindings.write-back} turns this off when {@code false}, and
+	 * {@code clojure.bindings.write-back.namespaces} limits it to a collection or
+	 * comma-separated list of namespace names.
+	 * <p>
+	 * When {@code clojure.bindings.thread-local} is {@code true}, the bindings are
+	 * bound to their vars on the calling thread only, for the length of the call,
+	 * so concurrent calls with different contexts don't see each other's values.
+	 * Defaults to {@code Boolean false}, which sets the roots of the vars: calls
+	 * running at the same time with different values for a binding then see
+	 * whichever was set last, unless each context has its own namespace.
+	 * <p>
+	 * With {@code clojure.bindings.type-hints} set to {@code true}, the var of
+	 * a binding is tagged with the class of its value, so that scripts call
+	 * its methods without reflection. The property {@code clojure.bindings.types}
+	 * may instead map binding names to the classes, or class names, to tag
+	 * them with. A later value of another type widens the tag to a type both
+	 * share, or removes it, and the cached scripts are compiled again.
+	 * <p>
 	 * For consistency with the REPL, redirect {@code *err* } to a {@code PrintWriter}.
 	 */
-	public Object eval(Reader reader, ScriptContext context)
+	public Object eval(final Reader reader, ScriptContext context)
+	throws ScriptException {
+		if (reader == null)
+			throw new NullPointerException("reader is null");
+
+		return run(context, null, new AFn() {
+			public Object invoke() {
+				ReflectionProfiler p = profiler();
+				if (p == null)
+					return Compiler.load(reader);
+				return CompiledForms.load(reader, new ArrayList<IFn>(), new long[1], null, p);
+			}
+		});
+	}
+
+	/**
+	 * Evaluates a script one top-level form at a time, passing the value of
+	 * each form to a consumer as soon as it's evaluated. The reader is read
+	 * only as far as the form being evaluated, so neither the script nor its
+	 * results are held in memory, and a slow consumer holds back the reading
+	 * of the rest. The consumer stops the evaluation by returning
+	 * {@code false}; the forms after that one are not read.
+	 * <p>
+	 * Bindings, redirections and the namespace are set up as in
+	 * {@code eval(Reader, ScriptContext)}, once for the whole script, and
+	 * vars are copied back to the Engine bindings after the last form.
+	 *
+	 * @param reader   The source of the script.
+	 * @param context  The context to evaluate the script with.
+	 * @param consumer Receives the value of each form; returns whether to
+	 *                 go on with the next one.
+	 * @return The number of forms evaluated.
+	 * @throws ScriptException If a form or the consumer throws an exception.
+	 */
+	public long evalEach(Reader reader, ScriptContext context, final Predicate<Object> consumer)
 	throws ScriptException {
 		if (reader == null)
 			throw new NullPointerException("reader is null");
+		if (consumer == null)
+			throw new NullPointerException("consumer is null");
+
+		final LineNumberingPushbackReader r = (reader instanceof LineNumberingPushbackReader)
+			? (LineNumberingPushbackReader) reader : new LineNumberingPushbackReader(reader);
+
+		return (Long) run(context, null, new AFn() {
+			public Object invoke() {
+				long count = 0;
+				for (Object form = LispReader.read(r, false, EOF, false);
+					 form != EOF;
+					 form = LispReader.read(r, false, EOF, false)) {
+					count++;
+					if (!consumer.test(Compiler.eval(form)))
+						break;
+				}
+				return count;
+			}
+		});
+	}
+
+	/**
+	 * Evaluates a script one top-level form at a time with the engine's
+	 * context; see {@code evalEach(Reader, ScriptContext, Predicate)}.
+	 *
+	 * @param reader   The source of the script.
+	 * @param consumer Receives the value of each form; returns whether to
+	 *                 go on with the next one.
+	 * @return The number of forms evaluated.
+	 * @throws ScriptException If a form or the consumer throws an exception.
+	 */
+	public long evalEach(Reader reader, Predicate<Object> consumer)
+	throws ScriptException {
+		return evalEach(reader, context, consumer);
+	}
+
+	/*
+	 * Runs the body in the home namespace with the bindings and streams of
+	 * the passed context; the body either loads a script or runs one that
+	 * has been compiled. A body that compiles puts the time it took in
+	 * compileNanos; the rest of its time counts as execution.
+	 */
+	private Object run(ScriptContext context, long[] compileNanos, IFn body)
+	throws ScriptException {
 		if (context == null)
 			throw new NullPointerException("context is null");
 
 		Object result = null;
 
+		OutputBuffer[] buffers = enter(context);
+
 		try {
-			Bindings globalScope = context.getBindings(ScriptContext.GLOBAL_SCOPE);
-			if (globalScope != null)
-				applyBindings(globalScope);
+			IN_NS.invoke(home(context));
+			long start = System.nanoTime();
+			result = body.invoke();
+			namespaces.touch(RT.CURRENT_NS.deref());
+			long nanos = System.nanoTime() - start;
+			long compile = (compileNanos == null) ? 0 : compileNanos[0];
+			metrics.evaluated(compile, nanos - compile);
+			MetricsListener listener = listener();
+			if (listener != null)
+				listener.evaluated(compile, nanos - compile);
 
-			Bindings engineScope = context.getBindings(ScriptContext.ENGINE_SCOPE);
-			if (engineScope != null)
-				applyBindings(engineScope);
+			collectBindings(context);
+		} catch (Exception e) {
+			throw failure(e);
+		} finally {
+			exit(buffers);
+		}
+		checkOutput(buffers);
 
-			Var.pushThreadBindings(
-				RT.map(RT.CURRENT_NS, RT.CURRENT_NS.deref(),
-					   RT.IN, new LineNumberingPushbackReader(context.getReader()),
-					   RT.OUT, context.getWriter(),
-					   RT.ERR, context.getErrorWriter()));
+		return result;
+	}
 
-			IN_NS.invoke(USER_SYM);
-			result = Compiler.load(reader);
+	/*
+	 * Runs the cached forms for the script in the current namespace, or
+	 * compiles and caches them as they run for the first time. Without a
+	 * cache the script goes to Compiler.load(), whose reading, compiling and
+	 * running can't be told apart and count as execution. A script missing
+	 * from memory may still be found in the class cache on disk, and goes
+	 * there once compiled. While reflection is profiled the class cache is
+	 * not used, since the counted sites belong to this engine.
+	 */
+	private Object loadCached(String script, long[] compileNanos) {
+		configureCache();
+		ReflectionProfiler p = profiler();
+		ClassCache classes = (p == null) ? configureClassCache() : null;
+		if (cache.getCapacity() == 0 && classes == null)
+			return (p == null) ? Compiler.load(new StringReader(script))
+			                   : CompiledForms.load(new StringReader(script), new ArrayList<IFn>(), new long[1], null, p);
 
-            if (globalScope != null)
-                collectBindings(engineScope);
-		} catch (Exception e) {
-			throw new ScriptException(e);
-		} finally {
-			Var.popThreadBindings();
+		String ns = RT.CURRENT_NS.deref().toString();
+		CompiledForms forms = cache.get(ns, script);
+		if (forms != null)
+			return forms.run();
+
+		String key = null;
+		if (classes != null) {
+			key = ClassCache.key(ns, script, CLASSPATH, bindingTypes());
+			forms = classes.get(key);
+			if (forms != null) {
+				cache.put(ns, script, forms);
+				return forms.run();
+			}
 		}
 
+		List<IFn> compiled = new ArrayList<IFn>();
+		long[] executeNanos = new long[1];
+		long start = System.nanoTime();
+		Object result = (classes == null)
+			? CompiledForms.load(new StringReader(script), compiled, executeNanos, null, p)
+			: classes.load(key, new StringReader(script), compiled, executeNanos);
+		compileNanos[0] = System.nanoTime() - start - executeNanos[0];
+		cache.put(ns, script, new CompiledForms(compiled));
 		return result;
 	}
 
+	/*
+	 * Adds the compiler settings to a frame: *warn-on-reflection*,
+	 * *unchecked-math* and the *compiler-options* of the runtime with the
+	 * engine's changes. A setting left null keeps the runtime's root value.
+	 * The result is kept until a setting changes, which also empties the
+	 * cache of compiled scripts, since they were compiled under the old
+	 * settings. Turning reflection profiling on or off empties it as well.
+	 * Overrides, if any, are looked up first and don't touch what is kept.
+	 */
+	private Associative compileOptions(Associative frame, Map<String, ?> overrides) {
+		Object[] in = {
+			option(WARN_REFLECTION_KEY, overrides),
+			option(UNCHECKED_MATH_PROP, overrides),
+			option(DIRECT_LINKING_PROP, overrides),
+			option(ELIDE_META_PROP, overrides),
+			option(LOCALS_CLEARING_PROP, overrides),
+			get(PROFILE_REFLECTION_KEY),
+			warn_on_reflection.getRawRoot(),
+			unchecked_math.getRawRoot(),
+			Compiler.COMPILER_OPTIONS.getRawRoot() };
+
+		Object[] kept = compilerSettings;
+		Object[] out;
+		if (kept != null && Arrays.equals(in, Arrays.copyOf(kept, in.length))) {
+			out = Arrays.copyOfRange(kept, in.length, kept.length);
+		} else {
+			Object warn = (in[0] == null) ? in[6] : booleanValue(in[0]);
+
+			Object unchecked = in[7];
+			if (in[1] instanceof Boolean || in[1] instanceof Keyword)
+				unchecked = in[1];
+			else if (in[1] != null)
+				unchecked = in[1].toString().trim().endsWith(WARN_ON_BOXED.getName()) ? WARN_ON_BOXED : booleanValue(in[1]);
+
+			IPersistentMap options = (in[8] instanceof IPersistentMap) ? (IPersistentMap) in[8] : PersistentHashMap.EMPTY;
+			if (in[2] != null)
+				options = options.assoc(DIRECT_LINKING, booleanValue(in[2]));
+			if (in[3] != null)
+				options = options.assoc(ELIDE_META, keywords(in[3]));
+			if (in[4] != null)
+				options = options.assoc(DISABLE_LOCALS_CLEARING, booleanValue(in[4]));
+
+			out = new Object[] { warn, unchecked, options };
+			if (overrides == null) {
+				if (kept != null)
+					cache.clear();
+				kept = Arrays.copyOf(in, in.length + out.length);
+				System.arraycopy(out, 0, kept, in.length, out.length);
+				compilerSettings = kept;
+			}
+		}
+
+		return frame.assoc(warn_on_reflection, out[0])
+		            .assoc(unchecked_math, out[1])
+		            .assoc(Compiler.COMPILER_OPTIONS, out[2]);
+	}
+
+	private Object option(String key, Map<String, ?> overrides) {
+		return (overrides != null && overrides.containsKey(key)) ? overrides.get(key) : get(key);
+	}
+
+	private static Boolean booleanValue(Object value) {
+		return (value instanceof Boolean) ? (Boolean) value : Boolean.valueOf(value.toString().trim());
+	}
+
+	/*
+	 * Turns a collection or a comma-separated list of names into a vector
+	 * of keywords, as :elide-meta takes them.
+	 */
+	private static IPersistentVector keywords(Object value) {
+		Collection<?> names = (value instanceof Collection) ? (Collection<?>) value
+		                                                    : Arrays.asList(value.toString().split(","));
+		List<Keyword> keywords = new ArrayList<Keyword>();
+		for (Object name : names) {
+			if (name instanceof Keyword) {
+				keywords.add((Keyword) name);
+			} else {
+				String s = name.toString().trim();
+				if (s.length() > 0)
+					keywords.add(Keyword.intern(s.startsWith(":") ? s.substring(1) : s));
+			}
+		}
+		return PersistentVector.create(keywords);
+	}
+
+	private boolean booleanOption(String key, boolean defaultValue) {
+		Object value = get(key);
+		if (value == null)
+			return defaultValue;
+		if (value instanceof Boolean)
+			return ((Boolean) value).booleanValue();
+		return Boolean.parseBoolean(value.toString().trim());
+	}
+
+	private void configureCache() {
+		int size = CACHE_SIZE;
+		Object value = get(CACHE_SIZE_KEY);
+		if (value instanceof Number)
+			size = ((Number) value).intValue();
+		else if (value != null)
+			size = Integer.parseInt(value.toString().trim());
+
+		value = get(CACHE_EVICTION_KEY);
+		boolean lru = (value == null) || !"fifo".equalsIgnoreCase(value.toString().trim());
+		cache.configure(size, lru);
+	}
+
+	/*
+	 * Returns the class cache on the configured directory, or null if there
+	 * is none. A change of directory or size starts a new one.
+	 */
+	private ClassCache configureClassCache() {
+		Object value = get(CLASS_CACHE_KEY);
+		if (value == null) {
+			classCache = null;
+			return null;
+		}
+		File root = (value instanceof File) ? (File) value : new File(value.toString().trim());
+
+		long size = CLASS_CACHE_SIZE;
+		Object max = get(CLASS_CACHE_SIZE_KEY);
+		if (max instanceof Number)
+			size = ((Number) max).longValue();
+		else if (max != null)
+			size = Long.parseLong(max.toString().trim());
+
+		ClassCache classes = classCache;
+		if (classes == null || !classes.getRoot().equals(root) || classes.getMaxBytes() != size)
+			classCache = classes = new ClassCache(root, size);
+		return classes;
+	}
+
+	/*
+	 * Returns the class loaders for calls under the configured retention,
+	 * or null if Clojure keeps the classes it compiles as it would anyway.
+	 * A change of retention starts anew.
+	 */
+	private ScriptLoaders configureLoaders() {
+		Object value = get(CLASS_RETENTION_KEY);
+		if (value == null) {
+			loaders = null;
+			metrics.setScriptLoaders(null);
+			return null;
+		}
+		int retention = (value instanceof Number) ? ((Number) value).intValue()
+		                                          : Integer.parseInt(value.toString().trim());
+
+		ScriptLoaders l = loaders;
+		if (l == null || l.getRetention() != retention) {
+			loaders = l = new ScriptLoaders(Math.max(retention, 0));
+			metrics.setScriptLoaders(l);
+		}
+		return l;
+	}
+
+	/**
+	 * Returns the number of {@code eval(String)} calls that found the classes
+	 * of a script in the class cache set by {@code clojure.eval.class-cache},
+	 * rather than compiling it.
+	 *
+	 * @return The count of class cache hits since the cache was set.
+	 */
+	public long getClassCacheHitCount() {
+		ClassCache classes = classCache;
+		return (classes == null) ? 0 : classes.getHitCount();
+	}
+
+	/**
+	 * Returns the number of scripts whose classes were written to the class
+	 * cache set by {@code clojure.eval.class-cache}.
+	 *
+	 * @return The count of scripts stored since the cache was set.
+	 */
+	public long getClassCacheStoreCount() {
+		ClassCache classes = classCache;
+		return (classes == null) ? 0 : classes.getStoreCount();
+	}
+
+	/*
+	 * Returns the profiler if clojure.profile.reflection is on, or null.
+	 */
+	private ReflectionProfiler profiler() {
+		return booleanOption(PROFILE_REFLECTION_KEY, false) ? profiler : null;
+	}
+
+	/**
+	 * Returns the reflective call sites of the scripts evaluated or compiled
+	 * while the property {@code clojure.profile.reflection} was {@code true},
+	 * with the number of times each one ran, the most run first. Each site
+	 * is a map with these keys:
+	 * <ul>
+	 * <li>{@code site}: the namespace, line and column of the call.</li>
+	 * <li>{@code form}: the start of the code of the call, or {@code null}
+	 * if it couldn't be found in the source.</li>
+	 * <li>{@code warning}: the compiler's reflection warning.</li>
+	 * <li>{@code count}: a {@code Long} with the number of runs.</li>
+	 * </ul>
+	 * Adding type hints to the sites at the top is what saves the most.
+	 *
+	 * @return The sites found so far, or an empty list.
+	 */
+	public List<Map<String, Object>> getReflectionReport() {
+		return profiler.report();
+	}
+
+	/**
+	 * Returns the number of {@code eval(String)} calls that found the script
+	 * already compiled.
+	 *
+	 * @return The count of cache hits since this engine was created.
+	 */
+	public long getCacheHitCount() {
+		return cache.getHitCount();
+	}
+
+	/**
+	 * Returns the number of {@code eval(String)} calls that had to compile
+	 * the script.
+	 *
+	 * @return The count of cache misses since this engine was created.
+	 */
+	public long getCacheMissCount() {
+		return cache.getMissCount();
+	}
+
+	/**
+	 * Returns the number of compiled scripts currently cached.
+	 *
+	 * @return The size of the cache.
+	 */
+	public int getCacheSize() {
+		return cache.size();
+	}
+
+	/**
+	 * Drops all cached compiled scripts. The hit and miss counts are kept.
+	 */
+	public void clearCache() {
+		cache.clear();
+	}
+
+	/**
+	 * Returns the measurements taken by this engine: counts of scripts,
+	 * function calls and failures, and the time spent compiling, running,
+	 * and applying and collecting bindings. Calls through function handles
+	 * and batches are not measured.
+	 * <p>
+	 * To forward each measurement as it's taken, set a {@code MetricsListener}
+	 * as the value of the property {@code clojure.metrics.listener}.
+	 *
+	 * @return The metrics of this engine, which can be registered as an MXBean.
+	 */
+	public EngineMetrics getMetrics() {
+		return metrics;
+	}
+
+	private MetricsListener listener() {
+		Object value = get(METRICS_LISTENER_KEY);
+		return (value instanceof MetricsListener) ? (MetricsListener) value : null;
+	}
+
+	/*
+	 * Counts a failure and wraps it for the caller.
+	 */
+	private ScriptException failure(Exception e) {
+		metrics.failed();
+		MetricsListener listener = listener();
+		if (listener != null)
+			listener.failed(e);
+		return new ScriptException(e);
+	}
+
+	/**
+	 * Records the current state of the Clojure runtime and of this engine's
+	 * Engine bindings as the baseline for {@code reset()}.
+	 * <p>
+	 * The baseline covers the whole runtime this engine runs on, which is
+	 * shared with other engines unless the engine has an isolated runtime.
+	 */
+	public synchronized void snapshot() {
+		baseline = new Baseline();
+		baselineBindings = new HashMap<String, Object>(getBindings(ScriptContext.ENGINE_SCOPE));
+	}
+
+	/**
+	 * Rolls the Clojure runtime and this engine's Engine bindings back to the
+	 * baseline recorded by {@code snapshot()}: namespaces created since are
+	 * removed, names added to the others are unmapped, and vars get back
+	 * their recorded values. The cache of compiled scripts is cleared, since
+	 * it may refer to vars that are gone.
+	 *
+	 * @throws IllegalStateException If no baseline was recorded.
+	 */
+	public synchronized void reset() {
+		if (baseline == null)
+			throw new IllegalStateException("no baseline");
+
+		baseline.restore();
+		resetBindings();
+	}
+
+	/**
+	 * Puts back this engine's Engine bindings as recorded by
+	 * {@code snapshot()}, leaving the Clojure runtime as it is. The cache
+	 * of compiled scripts is cleared, since the runtime may be rolled back
+	 * through another engine.
+	 *
+	 * @throws IllegalStateException If no baseline was recorded.
+	 */
+	public synchronized void resetBindings() {
+		if (baselineBindings == null)
+			throw new IllegalStateException("no baseline");
+
+		cache.clear();
+		vars.clear();
+
+		Bindings engineScope = getBindings(ScriptContext.ENGINE_SCOPE);
+		engineScope.clear();
+		engineScope.putAll(baselineBindings);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <p>
@@ -241,7 +1382,7 @@ class ClojureScriptEngine
 		if (clasz == null)
 			throw new NullPointerException("clasz is null");
 
-		String ns = "user";
+		String ns = home(context).getName();
 		Var var = RT.var(ns, clasz.getSimpleName()+"Impl");
 		return (var == null) ? null : (T) var.deref();
 	}
@@ -299,25 +1440,14 @@ class ClojureScriptEngine
 
 		Object result = null;
 		String format = "Function %s not found in namespace %s";
+		long start = System.nanoTime();
 
-		try {
-			Bindings globalScope = context.getBindings(ScriptContext.GLOBAL_SCOPE);
-			if (globalScope != null)
-				applyBindings(globalScope);
-
-			Bindings engineScope = context.getBindings(ScriptContext.ENGINE_SCOPE);
-			if (engineScope != null)
-				applyBindings(engineScope);
-
-			Var.pushThreadBindings(
-				RT.map(RT.CURRENT_NS, RT.CURRENT_NS.deref(),
-					   RT.IN, new LineNumberingPushbackReader(context.getReader()),
-					   RT.OUT, context.getWriter(),
-					   RT.ERR, context.getErrorWriter()));
+		OutputBuffer[] buffers = enter(context);
 
+		try {
 			if (name.indexOf('/') == -1) {
-				String ns = "user";
-				Var var = RT.var(ns, name);
+				String ns = home(context).getName();
+				Var var = lookup(ns, name);
 			    if (var == null) {
 			    	String msg = String.format(format, name, ns);
 			    	throw new NoSuchMethodException(msg);
@@ -325,25 +1455,221 @@ class ClojureScriptEngine
 				result = var.applyTo(RT.seq(args));
 			} else {
 				String[] names = name.split("/");
-			    Var var = RT.var(names[0], names[1]);
+			    Var var = lookup(names[0], names[1]);
 			    if (var == null) {
 			    	String msg = String.format(format, names[1], names[0]);
 			    	throw new NoSuchMethodException(msg);
 			    }
+				namespaces.touch(var.ns);
 				result = var.applyTo(RT.seq(args));
 			}
 
-            if (globalScope != null)
-                collectBindings(engineScope);
+			collectBindings(context);
+		} catch (NoSuchMethodException e) {
+			throw e;
 		} catch (Exception e) {
-			throw new ScriptException(e);
+			throw failure(e);
 		} finally {
-			Var.popThreadBindings();
+			exit(buffers);
+			long nanos = System.nanoTime() - start;
+			metrics.invoked(name, nanos);
+			MetricsListener listener = listener();
+			if (listener != null)
+				listener.invoked(name, nanos);
 		}
+		checkOutput(buffers);
 
 		return result;
 	}
 
+	/*
+	 * Returns the bound var that a namespace maps a name to, or null if
+	 * there's none. Unlike RT.var(), it doesn't intern the name.
+	 */
+	private static Var lookup(String ns, String name) {
+		Namespace namespace = Namespace.find(Symbol.intern(ns));
+		Object val = (namespace == null) ? null : namespace.getMapping(Symbol.intern(name));
+		return (val instanceof Var && ((Var) val).isBound()) ? (Var) val : null;
+	}
+
+	/**
+	 * Resolves a function into a handle that calls it directly, for code
+	 * that calls the same function many times. The name follows the format
+	 * of {@code invokeFunction()}.
+	 * <p>
+	 * Unlike {@code invokeFunction()}, calling the handle neither applies
+	 * the bindings and redirections of the context nor copies back the vars
+	 * changed by the call; the function sees the values last applied by an
+	 * {@code eval()} and the thread's own bindings of {@code *out*} and the
+	 * other standard streams.
+	 *
+	 * @param name The name of the function.
+	 * @return A handle to the function.
+	 * @throws NoSuchMethodException If there is no such function.
+	 */
+	public ClojureFunction getFunction(String name)
+	throws NoSuchMethodException {
+		if (name == null)
+			throw new NullPointerException("name is null");
+
+		String ns = home(context).getName();
+		String fn = name;
+		int slash = name.indexOf('/');
+		if (slash > 0) {
+			ns = name.substring(0, slash);
+			fn = name.substring(slash + 1);
+		}
+
+		Var var = lookup(ns, fn);
+		if (var == null) {
+			String msg = String.format("Function %s not found in namespace %s", fn, ns);
+			throw new NoSuchMethodException(msg);
+		}
+		return new ClojureFunction(var);
+	}
+
+	/**
+	 * Calls a function once for each array of arguments, in order, and
+	 * returns the results in the same order. The name follows the format of
+	 * {@code invokeFunction()}.
+	 * <p>
+	 * The bindings and redirections of the context are applied once before
+	 * the first call, and the vars changed by the calls are copied back to
+	 * the Engine bindings once after the last one, so the batch costs the
+	 * same setup as a single {@code invokeFunction()}.
+	 *
+	 * @param name The name of the function.
+	 * @param args The arguments for each call.
+	 * @return The results of the calls.
+	 * @throws ScriptException If a call throws an exception; the rest of the
+	 *                         batch is not run.
+	 * @throws NoSuchMethodException If there is no such function.
+	 */
+	public Object[] invokeBatch(String name, Collection<Object[]> args)
+	throws ScriptException, NoSuchMethodException {
+		if (args == null)
+			throw new NullPointerException("args is null");
+
+		final Object[] results = new Object[args.size()];
+		invokeBatch(name, args, new Consumer<Object>() {
+			private int i;
+			public void accept(Object result) {
+				results[i++] = result;
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * Calls a function once for each array of arguments, in order, passing
+	 * each result to a consumer as it comes. Works like
+	 * {@code invokeBatch(String, Collection)}, but doesn't need to know the
+	 * number of calls up front or hold on to their results.
+	 *
+	 * @param name     The name of the function.
+	 * @param args     The arguments for each call.
+	 * @param consumer Receives the result of each call.
+	 * @throws ScriptException If a call or the consumer throws an exception;
+	 *                         the rest of the batch is not run.
+	 * @throws NoSuchMethodException If there is no such function.
+	 */
+	public void invokeBatch(String name, Iterable<Object[]> args, Consumer<Object> consumer)
+	throws ScriptException, NoSuchMethodException {
+		if (args == null)
+			throw new NullPointerException("args is null");
+		if (consumer == null)
+			throw new NullPointerException("consumer is null");
+
+		ClojureFunction fn = getFunction(name);
+
+		OutputBuffer[] buffers = enter(context);
+
+		try {
+			for (Object[] a : args)
+				consumer.accept(fn.apply(a));
+
+			collectBindings(context);
+		} catch (Exception e) {
+			throw failure(e);
+		} finally {
+			exit(buffers);
+		}
+		checkOutput(buffers);
+	}
+
+	/**
+	 * Calls a function of a {@code long} that returns a {@code long}, without
+	 * boxing either if the function has {@code ^long} hints. Like a function
+	 * handle, this doesn't apply the bindings of the context. The handle is
+	 * kept by name, and resolved again only if the name comes to refer to
+	 * another var, so calls after the first allocate nothing.
+	 *
+	 * @param name The name of the function.
+	 * @param arg1 The argument of the function.
+	 * @return The value returned by the function.
+	 * @throws ScriptException If the function throws an exception.
+	 * @throws NoSuchMethodException If there is no such function.
+	 */
+	public long invokeLong(String name, long arg1)
+	throws ScriptException, NoSuchMethodException {
+		return function(name).invokeLong(arg1);
+	}
+
+	/**
+	 * Calls a function of two {@code long} values that returns a
+	 * {@code long}; see {@code invokeLong(String, long)}.
+	 */
+	public long invokeLong(String name, long arg1, long arg2)
+	throws ScriptException, NoSuchMethodException {
+		return function(name).invokeLong(arg1, arg2);
+	}
+
+	/**
+	 * Calls a function of a {@code double} that returns a {@code double};
+	 * see {@code invokeLong(String, long)}.
+	 */
+	public double invokeDouble(String name, double arg1)
+	throws ScriptException, NoSuchMethodException {
+		return function(name).invokeDouble(arg1);
+	}
+
+	/**
+	 * Calls a function of two {@code double} values that returns a
+	 * {@code double}; see {@code invokeLong(String, long)}.
+	 */
+	public double invokeDouble(String name, double arg1, double arg2)
+	throws ScriptException, NoSuchMethodException {
+		return function(name).invokeDouble(arg1, arg2);
+	}
+
+	/*
+	 * Returns the handle kept for a name, or resolves a new one if the
+	 * namespace it was found in is gone, no longer maps the name to its var,
+	 * or, for a name without a namespace, isn't the home namespace anymore.
+	 */
+	private ClojureFunction function(String name)
+	throws NoSuchMethodException {
+		if (name == null)
+			throw new NullPointerException("name is null");
+
+		FunctionRef ref = functions.get(name);
+		if (ref != null) {
+			Var var = ref.fn.getVar();
+			Namespace ns = ref.ns;
+			if (Namespace.find(ns.getName()) == ns && ns.getMapping(var.sym) == var && var.isBound()
+			    && (ref.qualified || ns.getName().equals(home(context))))
+				return ref.fn;
+		}
+
+		ClojureFunction fn = getFunction(name);
+		int slash = name.indexOf('/');
+		Namespace ns = (slash > 0) ? Namespace.find(Symbol.intern(name.substring(0, slash)))
+		                           : Namespace.find(home(context));
+		if (ns != null)
+			functions.put(name, new FunctionRef(ns, fn, slash > 0));
+		return fn;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <p>
@@ -355,6 +1681,100 @@ class ClojureScriptEngine
 		return invokeFunction(name, args);
 	}
 
+	/**
+	 * Evaluates a script on the executor set in the property
+	 * {@code clojure.async.executor}, which defaults to the common fork-join
+	 * pool. Works like {@code eval(String)} with the engine's context as it
+	 * is when this method is called.
+	 * <p>
+	 * The calling thread's Clojure bindings, such as those made with
+	 * {@code binding}, are conveyed to the thread that runs the script, as
+	 * Clojure does for futures and agents; the streams and bindings of the
+	 * context are then applied on top of them.
+	 *
+	 * @param script The script to evaluate.
+	 * @return A future for the value of the script. If the script fails, it
+	 *         completes with a {@code ScriptException}.
+	 */
+	public CompletableFuture<Object> evalAsync(String script) {
+		return evalAsync(script, context);
+	}
+
+	/**
+	 * Evaluates a script with the passed context on the executor set in the
+	 * property {@code clojure.async.executor}; see {@code evalAsync(String)}.
+	 *
+	 * @param script  The script to evaluate.
+	 * @param context The context to evaluate the script with.
+	 * @return A future for the value of the script.
+	 */
+	public CompletableFuture<Object> evalAsync(final String script, final ScriptContext context) {
+		if (script == null)
+			throw new NullPointerException("script is null");
+		if (context == null)
+			throw new NullPointerException("context is null");
+
+		return async(new Callable<Object>() {
+			public Object call() throws Exception {
+				return eval(script, context);
+			}
+		});
+	}
+
+	/**
+	 * Calls a function on the executor set in the property
+	 * {@code clojure.async.executor}. Works like {@code invokeFunction()}
+	 * and conveys the caller's Clojure bindings like {@code evalAsync()}.
+	 *
+	 * @param name The name of the function.
+	 * @param args The arguments of the function.
+	 * @return A future for the value returned by the function. It completes
+	 *         with a {@code ScriptException} if the call fails, or with a
+	 *         {@code NoSuchMethodException} if there is no such function.
+	 */
+	public CompletableFuture<Object> invokeAsync(final String name, final Object... args) {
+		if (name == null)
+			throw new NullPointerException("name is null");
+
+		return async(new Callable<Object>() {
+			public Object call() throws Exception {
+				return invokeFunction(name, args);
+			}
+		});
+	}
+
+	/*
+	 * Runs the task on the configured executor within a copy of the calling
+	 * thread's binding frame, restoring the worker's own frame afterwards.
+	 */
+	private CompletableFuture<Object> async(final Callable<Object> task) {
+		final CompletableFuture<Object> future = new CompletableFuture<Object>();
+		final Object frame = Var.cloneThreadBindingFrame();
+
+		Object value = get(EXECUTOR_KEY);
+		Executor executor = (value instanceof Executor) ? (Executor) value : ForkJoinPool.commonPool();
+
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					Object previous = Var.getThreadBindingFrame();
+					Var.resetThreadBindingFrame(frame);
+					try {
+						future.complete(task.call());
+					} catch (Throwable t) {
+						future.completeExceptionally(t);
+					} finally {
+						Var.resetThreadBindingFrame(previous);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(failure(e));
+		}
+
+		return future;
+	}
+
 	/******************************************************************
 	 *                                                                *
 	 *         Implementation of interface Compilable.                *
@@ -364,46 +1784,76 @@ class ClojureScriptEngine
 	/**
 	 * {@inheritDoc}
 	 * <p>
-	 * Clojure code always runs compiled. This method will compile a Clojure
-	 * library to .class files for AOT compilation. The argument is expected
-	 * to be the namespace defined by the library. The filename and location
-	 * should be as expected by the Clojure runtime.
-	 * <p>
-	 * This engine will recognize and pass on these properties to the Clojure
-	 * compiler:
+	 * The script is read and compiled once in the {@code user} namespace,
+	 * with the Engine and Global bindings of the engine's context applied;
+	 * evaluating the returned {@code CompiledScript} applies the bindings and
+	 * redirections of the context, as in the {@code eval()} calls, and then
+	 * only runs the compiled code.
 	 * <p>
-	 * {@code clojure.source.path} Additional locations of Clojure source files,
-	 * to be appended to the value of "java.class.path". This is an optional
-	 * property and defaults to {@code null}.
+	 * Compiling does not run the script, except for the top-level forms that
+	 * later forms may depend on to compile: {@code ns}, {@code in-ns},
+	 * {@code import}, {@code require}, {@code use}, {@code refer} and
+	 * {@code defmacro}. A form that fails to compile until the forms before it
+	 * have run, such as a macro call whose expansion calls a function of the
+	 * script, or one that uses a type the script defines, has those forms run
+	 * first, provided it names something they define. All of them run again,
+	 * along with the rest of the script, every time the compiled script is
+	 * evaluated. Any other compile error is thrown before any form runs.
 	 * <p>
-	 * {@code clojure.compile.path} The location for the generated .class files.
-	 * Defaults to {@code "classes"}.
-	 * <p>
-	 * {@code clojure.compile.warn-on-reflection} Whether to get a warning when
-	 * Clojure will use Java reflection. Defaults to {@code Boolean false}.
+	 * The script is compiled with the engine's compiler options, which it
+	 * keeps for as long as it's used.
 	 */
     public CompiledScript compile(String script)
     throws ScriptException {
+		return compile(script, null);
+    }
+
+	/**
+	 * Compiles a script as {@code compile(String)} does, with compiler
+	 * options that take the place of the engine's for this script only.
+	 * The options are keyed by the names of the engine properties, such as
+	 * {@code clojure.compile.direct-linking}; the ones missing are taken
+	 * from the engine.
+	 *
+	 * @param script  The source of the script.
+	 * @param options Compiler options for this script, or {@code null}.
+	 * @return The compiled script.
+	 * @throws ScriptException If the script fails to compile.
+	 */
+	public CompiledScript compile(String script, Map<String, ?> options)
+	throws ScriptException {
 		if (script == null)
 			throw new NullPointerException("script is null");
 
-		final String library = script.trim();
-		if (library.length() == 0)
-			return null;
+		final CompiledForms forms;
 
+		OutputBuffer[] buffers = enter(context);
 
-		Var.pushThreadBindings(
-				RT.map(RT.CURRENT_NS, RT.CURRENT_NS.deref(),
-						RT.IN, new LineNumberingPushbackReader(context.getReader()),
-						RT.OUT, context.getWriter(),
-						RT.ERR, context.getErrorWriter()));
-
-		IN_NS.invoke(USER_SYM);
+		try {
+			if (options != null)
+				Var.pushThreadBindings(compileOptions(PersistentHashMap.EMPTY, options));
+			try {
+				IN_NS.invoke(home(context));
+				forms = CompiledForms.compile(new StringReader(script), profiler());
+			} finally {
+				if (options != null)
+					Var.popThreadBindings();
+			}
+		} catch (Exception e) {
+			throw failure(e);
+		} finally {
+			exit(buffers);
+		}
+		checkOutput(buffers);
 
 		return new CompiledScript() {
 			@Override
 			public Object eval(ScriptContext context) throws ScriptException {
-				return ClojureScriptEngine.this.eval(library, context);
+				return run(context, null, new AFn() {
+					public Object invoke() {
+						return forms.run();
+					}
+				});
 			}
 
 			@Override
@@ -420,9 +1870,42 @@ class ClojureScriptEngine
 	 * No Clojure code is expected from the {@code Reader}.
 	 * <p>
 	 * This method expects to read library names in separate lines
-	 * from the passed reader. It will compile each library in turn.
-	 * The actual Clojure code to compile should be in source files
-	 * with the name and locations as expected by the Clojure compiler.
+	 * from the passed reader. It will compile each library in turn
+	 * to .class files for AOT compilation. The actual Clojure code
+	 * to compile should be in source files with the name and locations
+	 * as expected by the Clojure compiler.
+	 * <p>
+	 * This engine will recognize and pass on these properties to the Clojure
+	 * compiler:
+	 * <p>
+	 * {@code clojure.source.path} Additional locations of Clojure source files,
+	 * to be appended to the value of "java.class.path". This is an optional
+	 * property and defaults to {@code null}.
+	 * <p>
+	 * {@code clojure.compile.path} The location for the generated .class files.
+	 * Defaults to {@code "classes"}.
+	 * <p>
+	 * {@code clojure.compile.warn-on-reflection} Whether to get a warning when
+	 * Clojure will use Java reflection. Defaults to {@code Boolean false}.
+	 * <p>
+	 * {@code clojure.compile.unchecked-math} Whether arithmetic on primitives
+	 * may overflow, or {@code ":warn-on-boxed"} to also warn about boxed math.
+	 * <p>
+	 * {@code clojure.compile.direct-linking} Whether calls to functions are
+	 * linked to the functions themselves rather than through their vars.
+	 * Faster, but later changes to those vars aren't seen by the callers.
+	 * <p>
+	 * {@code clojure.compile.elide-meta} The metadata keys to leave out of the
+	 * generated code, as a collection or a comma-separated list, such as
+	 * {@code "doc,file,line,added"}.
+	 * <p>
+	 * {@code clojure.compile.disable-locals-clearing} Whether to keep locals
+	 * alive for debuggers rather than clearing them.
+	 * <p>
+	 * These four default to {@code null}, which keeps the runtime's setting,
+	 * and apply as well to scripts compiled by {@code eval()} and
+	 * {@code compile(String)}; changing them empties the cache of compiled
+	 * scripts.
 	 */
     public CompiledScript compile(Reader script)
     throws ScriptException {
@@ -434,20 +1917,73 @@ class ClojureScriptEngine
 		try {
 			String library = bf.readLine();
 			while (library != null) {
-				compile(library);
+				compileLibrary(library.trim());
 				library = bf.readLine();
 			}
 		} catch (IOException e) {
-			throw new ScriptException(e);
+			throw failure(e);
 		} finally {
 			try {
 				bf.close();
 			} catch (IOException e) {
-				throw new ScriptException(e);
+				throw failure(e);
 			}
 		}
 
 		return null;
     }
 
+	/*
+	 * Compiles a library to .class files in the compile path.
+	 */
+	private void compileLibrary(String library)
+	throws ScriptException {
+		if (library.length() == 0)
+			return;
+
+		Object path = get(COMPILE_PATH_KEY);
+
+		Associative frame =
+				RT.map(RT.CURRENT_NS, RT.CURRENT_NS.deref(),
+						RT.IN, new LineNumberingPushbackReader(context.getReader()),
+						RT.OUT, context.getWriter(),
+						RT.ERR, context.getErrorWriter(),
+						compile_path, (path == null) ? "classes" : path.toString());
+		try {
+			frame = compileOptions(frame, null);
+		} catch (Exception e) {
+			throw failure(e);
+		}
+		if (ISOLATED)
+			frame = frame.assoc(Compiler.LOADER, new DynamicClassLoader(RUNTIME_LOADER));
+		Var.pushThreadBindings(frame);
+
+		try {
+			IN_NS.invoke(USER_SYM);
+			compile.invoke(Symbol.intern(library));
+		} catch (Exception e) {
+			throw failure(e);
+		} finally {
+			Var.popThreadBindings();
+		}
+	}
+
+	/*
+	 * A handle kept by invokeLong() and invokeDouble(), with the namespace
+	 * its name was resolved in.
+	 */
+	private static final class FunctionRef {
+
+		final Namespace ns;
+		final ClojureFunction fn;
+		final boolean qualified;
+
+		FunctionRef(Namespace ns, ClojureFunction fn, boolean qualified) {
+			this.ns = ns;
+			this.fn = fn;
+			this.qualified = qualified;
+		}
+
+	}
+
 }
@@ -20,8 +20,15 @@ import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Implementation of a {@code ScriptEngineFactory} for Clojure.
@@ -36,6 +43,11 @@ public class ClojureScriptEngineFactory
     private List<String> extensions;
     private List<String> names;
     private List<String> mimeTypes;
+    private Map<String, Object> parameters;
+    private final Map<String, RuntimeClassLoader> runtimes = new HashMap<String, RuntimeClassLoader>();
+    private volatile boolean isolated = Boolean.getBoolean("clojure.jsr223.isolated");
+
+    private final AtomicReference<Boot> boot = new AtomicReference<Boot>();
 
     /*
      * Default Constructor.
@@ -58,6 +70,15 @@ public class ClojureScriptEngineFactory
         list.add("text/clojure");
         list.add("text/x+clojure");
         mimeTypes = Collections.unmodifiableList(list);
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("clojure.source.path", null);
+        map.put("clojure.compile.path", "classes");
+        map.put("clojure.compile.warn-on-reflection", Boolean.FALSE);
+        parameters = Collections.unmodifiableMap(map);
+
+        if (Boolean.getBoolean("clojure.jsr223.preboot"))
+            preboot(System.getProperty("clojure.jsr223.preload", "").split(","));
     }
 
     /**
@@ -182,6 +203,15 @@ public class ClojureScriptEngineFactory
     /**
      * {@inheritDoc}
      * <p>
+     * The value of {@code THREADING} is {@code MULTITHREADED}: scripts may
+     * run concurrently on one engine, and the effects of a script on one
+     * thread are visible to scripts on other threads. By default that
+     * includes the bindings of the context, which are set as the roots of
+     * their vars; contexts with different values for the same bindings
+     * need {@code clojure.bindings.thread-local} or
+     * {@code clojure.context.namespaces} set to {@code true} to run at the
+     * same time.
+     * <p>
      * The Clojure Scripting Engine supports these additional properties:
      * <p>
      * {@code clojure.source.path} Additional locations of Clojure source files,
@@ -193,9 +223,26 @@ public class ClojureScriptEngineFactory
      * <p>
      * {@code clojure.compile.warn-on-reflection} Whether to get a warning when
      * Clojure will use Java reflection. Defaults to {@code Boolean false}.
+     * <p>
+     * Answering does not create an engine, so it does not load Clojure.
      */
     public Object getParameter(String key) {
-        return (String) getScriptEngine().get(key);
+        if (key == null)
+            throw new NullPointerException("key is null");
+
+        if (key.equals(ScriptEngine.ENGINE))
+            return getEngineName();
+        if (key.equals(ScriptEngine.ENGINE_VERSION))
+            return getEngineVersion();
+        if (key.equals(ScriptEngine.NAME))
+            return getEngineName();
+        if (key.equals(ScriptEngine.LANGUAGE))
+            return getLanguageName();
+        if (key.equals(ScriptEngine.LANGUAGE_VERSION))
+            return getLanguageVersion();
+        if (key.equals("THREADING"))
+            return "MULTITHREADED";
+        return parameters.get(key);
     }
 
     /**
@@ -222,12 +269,261 @@ public class ClojureScriptEngineFactory
      * can simplify usage if each one will set different bindings and
      * redirection.
      * <p>
+     * If the system property {@code clojure.jsr223.isolated} is {@code true},
+     * or {@code setIsolated(true)} was called, each engine gets a Clojure
+     * runtime of its own instead, as described in
+     * {@code getScriptEngine(String)}.
      */
     public ScriptEngine getScriptEngine() {
+        if (isolated)
+            return getIsolatedScriptEngine();
+
+        return newScriptEngine(getLoader());
+    }
+
+    /**
+     * Returns a new instance of the Clojure script engine that runs on the
+     * isolated Clojure runtime of the given tenant, which is created on first
+     * use. Engines of the same tenant share their runtime; engines of
+     * different tenants, and engines from {@code getScriptEngine()}, don't
+     * see each other's namespaces and vars and don't contend on them.
+     * <p>
+     * Each runtime loads its own copy of the Clojure classes, but the class
+     * files are read once and shared for as long as the heap can keep them.
+     * Because the engine class itself belongs to the runtime, the returned
+     * engine is not an instance of the {@code ClojureScriptEngine} known to
+     * the caller and should be used through the {@code javax.script}
+     * interfaces.
+     *
+     * @param tenant The name of the runtime.
+     * @return A new engine on that tenant's runtime.
+     */
+    public ScriptEngine getScriptEngine(String tenant) {
+        if (tenant == null)
+            throw new NullPointerException("tenant is null");
+
+        RuntimeClassLoader loader;
+        synchronized (runtimes) {
+            loader = runtimes.get(tenant);
+            if (loader == null) {
+                loader = new RuntimeClassLoader(tenant, getLoader());
+                runtimes.put(tenant, loader);
+            }
+        }
+        return newScriptEngine(loader);
+    }
+
+    /**
+     * Returns the names of the tenants that have an isolated runtime.
+     *
+     * @return A snapshot of the tenant names.
+     */
+    public Set<String> getTenants() {
+        synchronized (runtimes) {
+            return new HashSet<String>(runtimes.keySet());
+        }
+    }
+
+    /**
+     * Forgets the runtime of a tenant. Its classes can be unloaded once its
+     * engines and the objects they created are no longer in use; a later
+     * call to {@code getScriptEngine(tenant)} starts a new runtime.
+     *
+     * @param tenant The name of the runtime.
+     * @return {@code true} if the tenant had a runtime.
+     */
+    public boolean releaseTenant(String tenant) {
+        synchronized (runtimes) {
+            return runtimes.remove(tenant) != null;
+        }
+    }
+
+    /**
+     * Sets whether {@code getScriptEngine()} creates each engine on an
+     * isolated runtime of its own.
+     *
+     * @param isolated {@code true} for one runtime per engine.
+     */
+    public void setIsolated(boolean isolated) {
+        this.isolated = isolated;
+    }
+
+    /**
+     * Returns whether {@code getScriptEngine()} creates each engine on an
+     * isolated runtime of its own.
+     *
+     * @return {@code true} for one runtime per engine.
+     */
+    public boolean isIsolated() {
+        return isolated;
+    }
+
+    /**
+     * Returns the number of classes loaded by the isolated runtime of an
+     * engine, or zero for an engine on the shared runtime.
+     *
+     * @param engine An engine created by this factory.
+     * @return The count of classes in the engine's runtime.
+     */
+    public int getRuntimeClassCount(ScriptEngine engine) {
+        ClassLoader loader = engine.getClass().getClassLoader();
+        return (loader instanceof RuntimeClassLoader) ? ((RuntimeClassLoader) loader).getClassCount() : 0;
+    }
+
+    /**
+     * Returns the size in bytes of the class files loaded by the isolated
+     * runtime of an engine, or zero for an engine on the shared runtime.
+     * The runtime's footprint in memory is roughly proportional to it.
+     *
+     * @param engine An engine created by this factory.
+     * @return The bytes of class definitions in the engine's runtime.
+     */
+    public long getRuntimeFootprint(ScriptEngine engine) {
+        ClassLoader loader = engine.getClass().getClassLoader();
+        return (loader instanceof RuntimeClassLoader) ? ((RuntimeClassLoader) loader).getByteCount() : 0;
+    }
+
+    /**
+     * Starts loading the shared Clojure runtime on a background daemon
+     * thread, so the first call to {@code getScriptEngine()} doesn't pay for
+     * booting {@code clojure.core}. The passed namespaces are then loaded
+     * with {@code require}. A call while a boot of this factory is running,
+     * or after one succeeded, has no effect; a call after one failed starts
+     * another. The runtime itself is booted once per class loader of this
+     * factory, so the boot of a later factory only loads its namespaces.
+     * <p>
+     * A call to {@code getScriptEngine()} made while the runtime is booting
+     * waits for the boot to finish rather than starting another one.
+     * <p>
+     * If the system property {@code clojure.jsr223.preboot} is {@code true},
+     * each new factory calls this method with the namespaces listed in the
+     * system property {@code clojure.jsr223.preload}, separated by commas.
+     *
+     * @param namespaces The names of the namespaces to load.
+     */
+    public void preboot(final String... namespaces) {
+        final Boot next = new Boot();
+        for (;;) {
+            Boot current = boot.get();
+            if (current != null && !current.failed())
+                return;
+            if (boot.compareAndSet(current, next))
+                break;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                boot(next, namespaces);
+            }
+        }, "clojure-jsr223-preboot");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for the last boot started by {@code preboot()} to finish.
+     *
+     * @param timeout The longest wait.
+     * @param unit    The unit of {@code timeout}.
+     * @return {@code true} if the runtime and the namespaces were loaded;
+     *         {@code false} if no boot was started, the wait timed out, or
+     *         the boot failed.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public boolean awaitBoot(long timeout, TimeUnit unit)
+    throws InterruptedException {
+        Boot b = boot.get();
+        if (b == null)
+            return false;
+        return b.done.await(timeout, unit) && b.failure == null;
+    }
+
+    /**
+     * Returns the time it took {@code preboot()} to load the Clojure runtime
+     * and the engine, or -1 if it hasn't done so.
+     *
+     * @return The boot time in nanoseconds.
+     */
+    public long getBootNanos() {
+        Boot b = boot.get();
+        return (b == null) ? -1 : b.bootNanos;
+    }
+
+    /**
+     * Returns the time it took {@code preboot()} to load the namespaces it
+     * was given, or -1 if it hasn't done so.
+     *
+     * @return The load time in nanoseconds.
+     */
+    public long getPreloadNanos() {
+        Boot b = boot.get();
+        return (b == null) ? -1 : b.preloadNanos;
+    }
+
+    /**
+     * Returns the exception that stopped {@code preboot()}, if any.
+     *
+     * @return The cause of a failed boot, or {@code null}.
+     */
+    public Throwable getBootFailure() {
+        Boot b = boot.get();
+        return (b == null) ? null : b.failure;
+    }
+
+    /*
+     * Loads the runtime by creating an engine, which also initializes the
+     * engine class, then requires the namespaces through that engine.
+     */
+    private void boot(Boot state, String[] namespaces) {
+        try {
+            long start = System.nanoTime();
+            ScriptEngine engine = newScriptEngine(getLoader());
+            state.bootNanos = System.nanoTime() - start;
+
+            StringBuilder b = new StringBuilder("(require");
+            for (String ns : namespaces) {
+                if (ns.trim().length() > 0)
+                    b.append(" '").append(ns.trim());
+            }
+            b.append(')');
+
+            start = System.nanoTime();
+            engine.eval(b.toString());
+            state.preloadNanos = System.nanoTime() - start;
+        } catch (Throwable t) {
+            state.failure = t;
+        } finally {
+            state.done.countDown();
+        }
+    }
+
+    /*
+     * Creates an engine on an isolated runtime of its own, whatever the
+     * setting of isolated.
+     */
+    ScriptEngine getIsolatedScriptEngine() {
+        return newScriptEngine(new RuntimeClassLoader(null, getLoader()));
+    }
+
+    private ClassLoader getLoader() {
+        return ClojureScriptEngineFactory.class.getClassLoader();
+    }
+
+    /*
+     * Creates an engine through the passed loader. The context class loader
+     * is set to it while the engine's class is initialized, since that is
+     * where the Clojure runtime looks for clojure.core when it boots.
+     */
+    private ScriptEngine newScriptEngine(ClassLoader loader) {
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        if (loader instanceof RuntimeClassLoader)
+            thread.setContextClassLoader(loader);
+
         try {
             // use reflection to load Clojure on demand
             Class<?> c = Class
-                    .forName("clojure.contrib.jsr223.ClojureScriptEngine");
+                    .forName("clojure.contrib.jsr223.ClojureScriptEngine", true, loader);
             return (ScriptEngine) c.getConstructor(
                     ScriptEngineFactory.class).newInstance(this);
         } catch (InstantiationException e) {
@@ -244,7 +540,25 @@ public class ClojureScriptEngineFactory
             throw new RuntimeException(e);
         } catch (SecurityException e) {
             throw new RuntimeException(e);
+        } finally {
+            thread.setContextClassLoader(previous);
         }
     }
 
+    /*
+     * The state of a boot started by preboot().
+     */
+    private static final class Boot {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long bootNanos = -1;
+        volatile long preloadNanos = -1;
+        volatile Throwable failure;
+
+        boolean failed() {
+            return done.getCount() == 0 && failure != null;
+        }
+
+    }
+
 }
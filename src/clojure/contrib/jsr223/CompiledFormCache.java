@@ -0,0 +1,143 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of compiled scripts keyed by their text and the namespace
+ * they were compiled in.
+ * <p>
+ * Entries are evicted in least-recently-used or in insertion order. A
+ * capacity of zero turns the cache off.
+ *
+ * @version 1.2
+ */
+final class CompiledFormCache {
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private Map<Key, CompiledForms> map;
+	private int capacity;
+	private boolean lru;
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param capacity The maximum number of scripts to keep.
+	 * @param lru      {@code true} to evict the least recently used script,
+	 *                 {@code false} to evict the oldest one.
+	 */
+	CompiledFormCache(int capacity, boolean lru) {
+		this.capacity = capacity;
+		this.lru = lru;
+		this.map = newMap();
+	}
+
+	/*
+	 * Applies the passed settings. A change of eviction order starts over
+	 * with an empty map; a smaller capacity evicts right away.
+	 */
+	synchronized void configure(int capacity, boolean lru) {
+		if (lru != this.lru) {
+			this.lru = lru;
+			map = newMap();
+		}
+		this.capacity = Math.max(capacity, 0);
+		Iterator<Key> it = map.keySet().iterator();
+		while (map.size() > this.capacity) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Looks up a script compiled in the given namespace and counts the
+	 * outcome as a hit or a miss.
+	 */
+	synchronized CompiledForms get(String ns, String script) {
+		CompiledForms forms = map.get(new Key(ns, script));
+		if (forms == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return forms;
+	}
+
+	synchronized void put(String ns, String script, CompiledForms forms) {
+		if (capacity > 0)
+			map.put(new Key(ns, script), forms);
+	}
+
+	synchronized int size() {
+		return map.size();
+	}
+
+	synchronized void clear() {
+		map.clear();
+	}
+
+	long getHitCount() {
+		return hits.get();
+	}
+
+	long getMissCount() {
+		return misses.get();
+	}
+
+	private Map<Key, CompiledForms> newMap() {
+		return new LinkedHashMap<Key, CompiledForms>(16, 0.75f, lru) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CompiledForms> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/*
+	 * The same text compiles to different code in different namespaces.
+	 */
+	private static final class Key {
+		private final String ns;
+		private final String script;
+		private final int hash;
+
+		Key(String ns, String script) {
+			this.ns = ns;
+			this.script = script;
+			this.hash = 31 * ns.hashCode() + script.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return hash == other.hash && ns.equals(other.ns) && script.equals(other.script);
+		}
+	}
+
+}
@@ -0,0 +1,324 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import clojure.lang.Compiler;
+import clojure.lang.*;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A script kept as the sequence of its top-level forms, each one compiled
+ * into a function of no arguments.
+ * <p>
+ * Running a {@code CompiledForms} calls those functions in order and goes
+ * through neither the reader nor the compiler.
+ *
+ * @version 1.2
+ */
+final class CompiledForms {
+
+	private static final Object EOF         = new Object();
+	private static final Symbol DO          = Symbol.intern("do");
+	private static final Symbol DEF         = Symbol.intern("def");
+	private static final Symbol FN          = Symbol.intern("fn*");
+	private static final Symbol FN_MACRO    = Symbol.intern("clojure.core", "fn");
+	private static final Symbol QUOTE       = Symbol.intern("quote");
+	private static final Var    MACROEXPAND = RT.var("clojure.core", "macroexpand");
+
+	private static final Set<String> DIRECTIVES = new HashSet<String>(Arrays.asList(
+		"ns", "in-ns", "import", "require", "use", "refer", "refer-clojure", "defmacro"));
+	private static final Set<String> MEMBERS = new HashSet<String>(Arrays.asList(
+		"defprotocol", "definterface"));
+
+	private final IFn[] forms;
+
+	/**
+	 * Creates an instance from the functions collected by {@code load()}.
+	 *
+	 * @param forms The compiled top-level forms, in source order.
+	 */
+	CompiledForms(List<IFn> forms) {
+		this.forms = forms.toArray(new IFn[forms.size()]);
+	}
+
+	/*
+	 * Reads, compiles and runs one top-level form at a time, the way
+	 * Compiler.load() does, so every form is compiled in the namespace and
+	 * with the imports left by the ones before it. Top-level do forms are
+	 * taken apart for the same reason. The compiled forms are appended to
+	 * the passed list, and the time spent running them is added to the
+	 * first element of executeNanos.
+	 */
+	static Object load(Reader reader, List<IFn> compiled, long[] executeNanos) {
+		return load(reader, compiled, executeNanos, null, null);
+	}
+
+	/*
+	 * Loads a script while writing the classes of its forms under the passed
+	 * directory, or only in memory if it's null. Only compiling writes them;
+	 * libraries that the script loads as it runs are not compiled to files.
+	 * A profiler, if given, counts the reflective calls of the forms.
+	 */
+	static Object load(Reader reader, List<IFn> compiled, long[] executeNanos, String compilePath,
+	                   ReflectionProfiler profiler) {
+		LineNumberingPushbackReader r = new LineNumberingPushbackReader(reader);
+		Object result = null;
+		for (Object form = LispReader.read(r, false, EOF, false);
+			 form != EOF;
+			 form = LispReader.read(r, false, EOF, false)) {
+			result = load(form, compiled, true, executeNanos, compilePath, profiler);
+		}
+		return result;
+	}
+
+	/*
+	 * Reads and compiles every top-level form without running it. Only the
+	 * forms that change how the rest of the script compiles are run, since
+	 * their effect is needed right away. A form may still need others to
+	 * have run, as when a macro calls a function defined before it, or a
+	 * form uses a type. So if a form fails to compile and names something
+	 * that a form before it defines, directly or through the macros it
+	 * calls, the forms not yet run are run and it's compiled again. Any
+	 * other failure is thrown before anything runs.
+	 */
+	static CompiledForms compile(Reader reader, ReflectionProfiler profiler) {
+		LineNumberingPushbackReader r = new LineNumberingPushbackReader(reader);
+		List<IFn> compiled = new ArrayList<IFn>();
+		List<IFn> pending = new ArrayList<IFn>();
+		Set<String> defined = new HashSet<String>();
+		Map<String, Set<String>> macros = new HashMap<String, Set<String>>();
+		long[] executeNanos = new long[1];
+		for (Object form = LispReader.read(r, false, EOF, false);
+			 form != EOF;
+			 form = LispReader.read(r, false, EOF, false)) {
+			boolean run = isDirective(form);
+			int mark = compiled.size();
+			try {
+				load(form, compiled, run, executeNanos, null, profiler);
+			} catch (RuntimeException e) {
+				if (pending.isEmpty() || !uses(form, defined, macros))
+					throw e;
+				compiled.subList(mark, compiled.size()).clear();
+				for (IFn fn : pending)
+					fn.invoke();
+				pending.clear();
+				defined.clear();
+				load(form, compiled, run, executeNanos, null, profiler);
+			}
+			if (run) {
+				Symbol macro = defines(form, "defmacro");
+				if (macro != null)
+					macros.put(macro.getName(), names(RT.next(RT.next(form)), new HashSet<String>()));
+			} else {
+				pending.addAll(compiled.subList(mark, compiled.size()));
+				definitions(form, defined);
+			}
+		}
+		return new CompiledForms(compiled);
+	}
+
+	/*
+	 * Adds the names that a form defines, as read: those of def forms, with
+	 * the methods of protocols and interfaces, also within a top-level do.
+	 */
+	private static void definitions(Object form, Set<String> defined) {
+		if (!(form instanceof ISeq))
+			return;
+		if (DO.equals(RT.first(form))) {
+			for (ISeq seq = RT.next(form); seq != null; seq = seq.next())
+				definitions(seq.first(), defined);
+			return;
+		}
+		Symbol name = defines(form, "def");
+		if (name == null)
+			return;
+		defined.add(name.getName());
+		if (MEMBERS.contains(((Symbol) RT.first(form)).getName()))
+			for (ISeq seq = RT.next(RT.next(form)); seq != null; seq = seq.next())
+				if (seq.first() instanceof ISeq && RT.first(seq.first()) instanceof Symbol)
+					defined.add(((Symbol) RT.first(seq.first())).getName());
+	}
+
+	/*
+	 * Returns the name given by a form whose operator starts with the passed
+	 * prefix, such as defn or defmacro, or null if it's not such a form.
+	 */
+	private static Symbol defines(Object form, String prefix) {
+		if (!(form instanceof ISeq) || !(RT.first(form) instanceof Symbol) || !(RT.second(form) instanceof Symbol))
+			return null;
+		Symbol op = (Symbol) RT.first(form);
+		if (op.getNamespace() != null && !op.getNamespace().equals("clojure.core"))
+			return null;
+		return op.getName().startsWith(prefix) ? (Symbol) RT.second(form) : null;
+	}
+
+	/*
+	 * Whether a form names something in the defined set, either itself or
+	 * in the bodies of the macros it calls.
+	 */
+	private static boolean uses(Object form, Set<String> defined, Map<String, Set<String>> macros) {
+		Set<String> names = names(form, new HashSet<String>());
+		ArrayDeque<String> todo = new ArrayDeque<String>(names);
+		while (!todo.isEmpty()) {
+			Set<String> body = macros.get(todo.pop());
+			if (body != null)
+				for (String name : body)
+					if (names.add(name))
+						todo.push(name);
+		}
+		for (String name : names)
+			if (defined.contains(name))
+				return true;
+		return false;
+	}
+
+	/*
+	 * Adds the names of the symbols in a form, outside quoted forms. Names
+	 * of constructors and record factories, such as Box., ->Box and
+	 * map->Box, are added as the type's.
+	 */
+	private static Set<String> names(Object form, Set<String> names) {
+		if (form instanceof Symbol) {
+			String name = ((Symbol) form).getName();
+			if (name.length() > 1 && name.endsWith("."))
+				name = name.substring(0, name.length() - 1);
+			else if (name.startsWith("map->"))
+				name = name.substring(5);
+			else if (name.startsWith("->"))
+				name = name.substring(2);
+			names.add(name);
+		} else if (form instanceof ISeq || form instanceof IPersistentCollection) {
+			if (form instanceof ISeq && QUOTE.equals(RT.first(form)))
+				return names;
+			for (ISeq seq = RT.seq(form); seq != null; seq = seq.next())
+				names(seq.first(), names);
+		}
+		return names;
+	}
+
+	private static Object load(Object form, List<IFn> compiled, boolean run, long[] executeNanos,
+	                           String compilePath, ReflectionProfiler profiler) {
+		Object expanded = MACROEXPAND.invoke(form);
+		if (expanded instanceof ISeq && DO.equals(RT.first(expanded))) {
+			Object result = null;
+			for (ISeq seq = RT.next(expanded); seq != null; seq = seq.next())
+				result = load(seq.first(), compiled, run, executeNanos, compilePath, profiler);
+			return result;
+		}
+		if (profiler != null)
+			expanded = profiler.instrument(expanded, form);
+
+		if (run && RT.booleanCast(Compiler.getCompilerOption(Compiler.directLinkingKey)) && isFunctionDef(expanded)) {
+			Var var = (Var) Compiler.eval(expanded);
+			compiled.add(new Redef(var));
+			return var;
+		}
+
+		IFn fn = compile(expanded, compilePath);
+		compiled.add(fn);
+		if (!run)
+			return null;
+
+		long start = System.nanoTime();
+		try {
+			return fn.invoke();
+		} finally {
+			executeNanos[0] += System.nanoTime() - start;
+		}
+	}
+
+	private static IFn compile(Object form, String compilePath) {
+		Object fn = RT.list(FN, PersistentVector.EMPTY, form);
+		if (compilePath == null)
+			return (IFn) Compiler.eval(fn);
+
+		Var.pushThreadBindings(RT.map(Compiler.COMPILE_FILES, Boolean.TRUE,
+		                              Compiler.COMPILE_PATH, compilePath));
+		try {
+			return (IFn) Compiler.eval(fn);
+		} finally {
+			Var.popThreadBindings();
+		}
+	}
+
+	/*
+	 * Whether a form defines a function. Wrapped in another function, its
+	 * own function couldn't be called directly by direct-linked code, so
+	 * it's compiled at the top level instead, and replayed by Redef. The
+	 * value is only looked at, not expanded, since expanding runs macros.
+	 */
+	private static boolean isFunctionDef(Object form) {
+		if (!(form instanceof ISeq) || !DEF.equals(RT.first(form)) || RT.count(form) < 3)
+			return false;
+		Object init = RT.nth(form, RT.count(form) - 1);
+		if (!(init instanceof ISeq) || !(RT.first(init) instanceof Symbol))
+			return false;
+		Symbol sym = (Symbol) RT.first(init);
+		return FN.equals(sym) || FN_MACRO.equals(sym) || FN_MACRO.getName().equals(sym.toString());
+	}
+
+	private static boolean isDirective(Object form) {
+		if (!(form instanceof ISeq) || !(RT.first(form) instanceof Symbol))
+			return false;
+		Symbol sym = (Symbol) RT.first(form);
+		if (sym.getNamespace() != null && !sym.getNamespace().equals("clojure.core"))
+			return false;
+		return DIRECTIVES.contains(sym.getName());
+	}
+
+	/*
+	 * Defines a function again, as the def form that first defined it would,
+	 * with the function it compiled: one without closed-over locals holds
+	 * no state, so it needn't be created again.
+	 */
+	private static final class Redef extends AFn {
+
+		private final Var var;
+		private final Object root;
+		private final IPersistentMap meta;
+
+		Redef(Var var) {
+			this.var = var;
+			this.root = var.getRawRoot();
+			this.meta = var.meta();
+		}
+
+		@Override
+		public Object invoke() {
+			var.setMeta(meta);
+			var.bindRoot(root);
+			return var;
+		}
+
+	}
+
+	/**
+	 * Runs the compiled forms in order.
+	 *
+	 * @return The value of the last form, or {@code null} if there are none.
+	 */
+	Object run() {
+		Object result = null;
+		for (IFn fn : forms)
+			result = fn.invoke();
+		return result;
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import clojure.lang.Namespace;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+import javax.script.ScriptContext;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The namespaces that give each {@code ScriptContext} its own vars.
+ * <p>
+ * A context tagged with the attribute {@code clojure.context.tag} gets the
+ * namespace named by the tag, shared by every context with the same tag;
+ * an untagged context gets one of its own. A namespace is created the first
+ * time its context is used, referring {@code clojure.core} and the public
+ * vars that the base namespace has at that moment.
+ * <p>
+ * The namespace of an untagged context is removed once the context is no
+ * longer reachable. Tagged namespaces stay until they're released.
+ * <p>
+ * The {@code Bindings} created by the engine get namespaces of their own
+ * as well, made the same way, which are removed once the bindings are no
+ * longer reachable.
+ * <p>
+ * Until then, these namespaces are owned by their contexts and bindings,
+ * and the removal of idle namespaces leaves them alone, whichever engine
+ * does it.
+ *
+ * @version 1.2
+ */
+final class ContextNamespaces {
+
+	static final String TAG_KEY = "clojure.context.tag";
+
+	private static final String PREFIX      = "jsr223.context-";
+	private static final String BINDINGS    = "jsr223.bindings-";
+	private static final Symbol CLOJURE_SYM = Symbol.intern("clojure.core");
+	private static final Var    REFER       = RT.var("clojure.core", "refer");
+
+	private static final Set<Symbol> OWNED =
+		Collections.newSetFromMap(new ConcurrentHashMap<Symbol, Boolean>());
+
+	private static long next;
+
+	private final Map<ScriptContext, Symbol> names = new WeakHashMap<ScriptContext, Symbol>();
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	private final Set<OwnerRef> refs = new HashSet<OwnerRef>();
+
+	/**
+	 * Returns the name of the context's namespace, creating it if needed.
+	 *
+	 * @param context The context of a call.
+	 * @param base    The namespace to refer, or {@code null} for none.
+	 */
+	synchronized Symbol namespaceOf(ScriptContext context, String base) {
+		Object tag = context.getAttribute(TAG_KEY);
+		Symbol name = (tag == null) ? names.get(context) : Symbol.intern(tag.toString());
+		if (name == null) {
+			name = newName(PREFIX);
+			names.put(context, name);
+			refs.add(new OwnerRef(context, name, queue));
+		}
+		OWNED.add(name);
+		if (Namespace.find(name) == null)
+			create(name, base);
+		return name;
+	}
+
+	/**
+	 * Returns bindings backed by a new namespace.
+	 *
+	 * @param base The namespace to refer, or {@code null} for none.
+	 */
+	synchronized NamespaceBindings bindings(String base) {
+		Symbol name = newName(BINDINGS);
+		create(name, base);
+		NamespaceBindings bindings = new NamespaceBindings(name.getName());
+		refs.add(new OwnerRef(bindings, name, queue));
+		OWNED.add(name);
+		return bindings;
+	}
+
+	private static Symbol newName(String prefix) {
+		synchronized (ContextNamespaces.class) {
+			return Symbol.intern(prefix + (++next));
+		}
+	}
+
+	/**
+	 * Whether a namespace belongs to a context or bindings still in use.
+	 */
+	static boolean owns(Symbol name) {
+		return OWNED.contains(name);
+	}
+
+	/**
+	 * Removes the namespace of a context.
+	 *
+	 * @return The namespace removed, or {@code null} if there was none.
+	 */
+	synchronized Namespace release(ScriptContext context) {
+		Object tag = context.getAttribute(TAG_KEY);
+		Symbol name = (tag == null) ? names.remove(context) : Symbol.intern(tag.toString());
+		if (name == null)
+			return null;
+		OWNED.remove(name);
+		return Namespace.remove(name);
+	}
+
+	/**
+	 * Removes the namespaces of the contexts and bindings that have been
+	 * collected and returns them, or an empty list if there are none.
+	 */
+	List<Namespace> expunge() {
+		// Called on every call, so the usual case takes no lock.
+		Reference<?> ref = queue.poll();
+		if (ref == null)
+			return Collections.emptyList();
+
+		List<Namespace> removed = new ArrayList<Namespace>();
+		synchronized (this) {
+			for (; ref != null; ref = queue.poll()) {
+				refs.remove(ref);
+				OWNED.remove(((OwnerRef) ref).name);
+				Namespace ns = Namespace.remove(((OwnerRef) ref).name);
+				if (ns != null)
+					removed.add(ns);
+			}
+		}
+		return removed;
+	}
+
+	private static void create(Symbol name, String base) {
+		Namespace ns = Namespace.findOrCreate(name);
+		Var.pushThreadBindings(RT.map(RT.CURRENT_NS, ns));
+		try {
+			REFER.invoke(CLOJURE_SYM);
+			if (base != null && Namespace.find(Symbol.intern(base)) != null)
+				REFER.invoke(Symbol.intern(base));
+		} finally {
+			Var.popThreadBindings();
+		}
+	}
+
+	private static final class OwnerRef extends WeakReference<Object> {
+
+		final Symbol name;
+
+		OwnerRef(Object owner, Symbol name, ReferenceQueue<Object> queue) {
+			super(owner, queue);
+			this.name = name;
+		}
+
+	}
+
+}
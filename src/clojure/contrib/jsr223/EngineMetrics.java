@@ -0,0 +1,203 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The measurements taken by a {@code ClojureScriptEngine}: counts of calls
+ * and failures, and histograms of where the time goes. Recording uses only
+ * adders and atomic arrays, so it takes no locks and is cheap enough to stay
+ * on under load.
+ * <p>
+ * An instance can be registered as an MXBean with {@code register()}.
+ *
+ * @version 1.2
+ */
+public class EngineMetrics implements EngineMetricsMXBean {
+
+	private static final String DOMAIN = "clojure.contrib.jsr223";
+
+	// Function names beyond this many are counted together, under "*".
+	private static final int MAX_FUNCTIONS = 1024;
+
+	private volatile Counters counters = new Counters();
+	private volatile ObjectName objectName;
+	private volatile ScriptLoaders loaders;
+
+	/*
+	 * Everything reset() clears, swapped as a unit.
+	 */
+	private static final class Counters {
+		final LongAdder evals = new LongAdder();
+		final LongAdder invokes = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LatencyHistogram compile = new LatencyHistogram();
+		final LatencyHistogram execute = new LatencyHistogram();
+		final LatencyHistogram apply = new LatencyHistogram();
+		final LatencyHistogram collect = new LatencyHistogram();
+		final ConcurrentMap<String, LatencyHistogram> functions =
+			new ConcurrentHashMap<String, LatencyHistogram>();
+	}
+
+	void evaluated(long compileNanos, long executeNanos) {
+		Counters c = counters;
+		c.evals.increment();
+		c.compile.record(compileNanos);
+		c.execute.record(executeNanos);
+	}
+
+	void bindingsApplied(long nanos) {
+		counters.apply.record(nanos);
+	}
+
+	void bindingsCollected(long nanos) {
+		counters.collect.record(nanos);
+	}
+
+	void invoked(String function, long nanos) {
+		Counters c = counters;
+		c.invokes.increment();
+		LatencyHistogram h = c.functions.get(function);
+		if (h == null) {
+			if (c.functions.size() >= MAX_FUNCTIONS)
+				function = "*";
+			h = c.functions.get(function);
+			if (h == null) {
+				LatencyHistogram created = new LatencyHistogram();
+				h = c.functions.putIfAbsent(function, created);
+				if (h == null)
+					h = created;
+			}
+		}
+		h.record(nanos);
+	}
+
+	void failed() {
+		counters.errors.increment();
+	}
+
+	void setScriptLoaders(ScriptLoaders loaders) {
+		this.loaders = loaders;
+	}
+
+	public long getEvalCount() {
+		return counters.evals.sum();
+	}
+
+	public long getInvokeCount() {
+		return counters.invokes.sum();
+	}
+
+	public long getErrorCount() {
+		return counters.errors.sum();
+	}
+
+	public Map<String, Long> getCompileTime() {
+		return counters.compile.summary();
+	}
+
+	public Map<String, Long> getExecuteTime() {
+		return counters.execute.summary();
+	}
+
+	public Map<String, Long> getApplyBindingsTime() {
+		return counters.apply.summary();
+	}
+
+	public Map<String, Long> getCollectBindingsTime() {
+		return counters.collect.summary();
+	}
+
+	public long getLoadedClassCount() {
+		return ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+	}
+
+	public long getUnloadedClassCount() {
+		return ManagementFactory.getClassLoadingMXBean().getUnloadedClassCount();
+	}
+
+	public long getMetaspaceUsed() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if ("Metaspace".equals(pool.getName()))
+				return pool.getUsage().getUsed();
+		return -1;
+	}
+
+	public int getScriptClassLoaderCount() {
+		ScriptLoaders l = loaders;
+		return (l == null) ? 0 : l.getLiveCount();
+	}
+
+	public long getCreatedScriptClassLoaderCount() {
+		ScriptLoaders l = loaders;
+		return (l == null) ? 0 : l.getCreatedCount();
+	}
+
+	public Map<String, Map<String, Long>> getInvokeTime() {
+		Map<String, Map<String, Long>> map = new TreeMap<String, Map<String, Long>>();
+		for (Map.Entry<String, LatencyHistogram> entry : counters.functions.entrySet())
+			map.put(entry.getKey(), entry.getValue().summary());
+		return map;
+	}
+
+	public void reset() {
+		counters = new Counters();
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server under the name
+	 * {@code clojure.contrib.jsr223:type=ClojureScriptEngine,name=}<i>name</i>.
+	 *
+	 * @param name The name that tells this engine apart from others.
+	 * @return The name of the registered MXBean.
+	 * @throws JMException If the name is invalid or already registered.
+	 */
+	public synchronized ObjectName register(String name)
+	throws JMException {
+		if (name == null)
+			throw new NullPointerException("name is null");
+		if (objectName != null)
+			throw new InstanceAlreadyExistsException(objectName.toString());
+
+		ObjectName on = new ObjectName(DOMAIN + ":type=ClojureScriptEngine,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+		objectName = on;
+		return on;
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server, if registered.
+	 *
+	 * @throws JMException If the MXBean could not be removed.
+	 */
+	public synchronized void unregister()
+	throws JMException {
+		if (objectName == null)
+			return;
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(objectName))
+			server.unregisterMBean(objectName);
+		objectName = null;
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import java.util.Map;
+
+/**
+ * Management interface of the measurements of a {@code ClojureScriptEngine}.
+ * Times are reported as maps with the keys count, totalNanos, meanNanos,
+ * maxNanos, p50Nanos, p90Nanos and p99Nanos. The class counts and the
+ * metaspace are those of the whole JVM, and are not cleared by reset().
+ *
+ * @version 1.2
+ */
+public interface EngineMetricsMXBean {
+
+	/** Returns the number of scripts evaluated. */
+	long getEvalCount();
+
+	/** Returns the number of calls to {@code invokeFunction()}. */
+	long getInvokeCount();
+
+	/** Returns the number of failures reported as a {@code ScriptException}. */
+	long getErrorCount();
+
+	/** Returns the time spent reading and compiling scripts. */
+	Map<String, Long> getCompileTime();
+
+	/** Returns the time spent running compiled scripts. */
+	Map<String, Long> getExecuteTime();
+
+	/** Returns the time spent applying bindings to vars. */
+	Map<String, Long> getApplyBindingsTime();
+
+	/** Returns the time spent copying vars back to the bindings. */
+	Map<String, Long> getCollectBindingsTime();
+
+	/** Returns the time of {@code invokeFunction()} calls by function name. */
+	Map<String, Map<String, Long>> getInvokeTime();
+
+	/** Returns the number of classes currently loaded in the JVM. */
+	long getLoadedClassCount();
+
+	/** Returns the number of classes unloaded since the JVM started. */
+	long getUnloadedClassCount();
+
+	/** Returns the bytes of metaspace in use, or -1 if there's none. */
+	long getMetaspaceUsed();
+
+	/**
+	 * Returns the number of class loaders of calls that haven't been garbage
+	 * collected, or zero unless {@code clojure.eval.class-retention} is set.
+	 */
+	int getScriptClassLoaderCount();
+
+	/** Returns the number of class loaders created for calls. */
+	long getCreatedScriptClassLoaderCount();
+
+	/** Clears all counts and times. */
+	void reset();
+
+}
@@ -0,0 +1,351 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of warmed-up Clojure script engines.
+ * <p>
+ * Engines are created, given a first evaluation and recorded as a baseline
+ * ahead of time, so the cost of loading Clojure is not paid by the threads
+ * that borrow them. An engine given back to the pool is reset to its
+ * baseline, which rolls back the namespaces and vars its scripts created or
+ * changed, rather than built again.
+ * <p>
+ * Engines on the shared Clojure runtime share one baseline, recorded before
+ * the first of them is handed out. An engine given back gets its own
+ * bindings reset right away, but the runtime is rolled back only once none of
+ * the engines is borrowed, so that calls still running keep their
+ * definitions. Until then, borrowers of the shared runtime may see each
+ * other's definitions; for engines that must not, create the pool with
+ * isolated runtimes.
+ * <p>
+ * Like the factory, this class does not refer to Clojure; the engines are
+ * reached through reflection, which also works for engines on an isolated
+ * runtime.
+ *
+ * @version 1.2
+ */
+public class EnginePool {
+
+	private static final String WARM_UP = "(+ 1 1)";
+
+	private final ClojureScriptEngineFactory factory;
+	private final boolean isolated;
+	private final int maxSize;
+	private final LinkedBlockingQueue<ScriptEngine> idle = new LinkedBlockingQueue<ScriptEngine>();
+	private final Set<ScriptEngine> engines =
+		Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<ScriptEngine, Boolean>()));
+	private final Set<ScriptEngine> borrowed = Collections.newSetFromMap(new IdentityHashMap<ScriptEngine, Boolean>());
+	private ScriptEngine keeper;
+	private final AtomicInteger size = new AtomicInteger();
+	private volatile long timeout;
+	private volatile boolean closed;
+
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong resets = new AtomicLong();
+	private final AtomicLong resetNanos = new AtomicLong();
+	private final AtomicLong maxResetNanos = new AtomicLong();
+
+	/**
+	 * Creates a pool and warms up its first engines.
+	 *
+	 * @param factory  The factory that creates the engines.
+	 * @param minSize  The number of engines created right away.
+	 * @param maxSize  The most engines the pool will create.
+	 * @param isolated Whether each engine gets an isolated runtime of its own.
+	 * @throws ScriptException If an engine fails to warm up.
+	 */
+	public EnginePool(ClojureScriptEngineFactory factory, int minSize, int maxSize, boolean isolated)
+	throws ScriptException {
+		if (factory == null)
+			throw new NullPointerException("factory is null");
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+			throw new IllegalArgumentException("invalid pool size");
+
+		this.factory = factory;
+		this.maxSize = maxSize;
+		this.isolated = isolated;
+		this.timeout = TimeUnit.SECONDS.toNanos(30);
+
+		for (int i = 0; i < minSize; i++) {
+			size.incrementAndGet();
+			idle.add(create());
+		}
+	}
+
+	/**
+	 * Sets how long {@code borrow()} waits for an engine.
+	 *
+	 * @param timeout The longest wait.
+	 * @param unit    The unit of {@code timeout}.
+	 */
+	public void setBorrowTimeout(long timeout, TimeUnit unit) {
+		this.timeout = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Takes an engine from the pool, waiting up to the borrow timeout.
+	 *
+	 * @return An engine, which must be given back with {@code release()}.
+	 * @throws TimeoutException     If no engine became available in time.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 * @throws ScriptException      If a new engine failed to warm up.
+	 */
+	public ScriptEngine borrow()
+	throws TimeoutException, InterruptedException, ScriptException {
+		return borrow(timeout, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Takes an engine from the pool. If none is idle and the pool is not at
+	 * its maximum size, a new engine is created; otherwise the call waits for
+	 * one to be released.
+	 *
+	 * @param timeout The longest wait.
+	 * @param unit    The unit of {@code timeout}.
+	 * @return An engine, which must be given back with {@code release()}.
+	 * @throws TimeoutException     If no engine became available in time.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 * @throws ScriptException      If a new engine failed to warm up.
+	 */
+	public ScriptEngine borrow(long timeout, TimeUnit unit)
+	throws TimeoutException, InterruptedException, ScriptException {
+		if (closed)
+			throw new IllegalStateException("pool is closed");
+
+		long start = System.nanoTime();
+		ScriptEngine engine = idle.poll();
+		if (engine == null && grow())
+			engine = create();
+		if (engine == null)
+			engine = idle.poll(timeout, unit);
+		if (engine == null) {
+			timeouts.incrementAndGet();
+			throw new TimeoutException("no engine available");
+		}
+
+		synchronized (borrowed) {
+			borrowed.add(engine);
+		}
+		long wait = System.nanoTime() - start;
+		borrows.incrementAndGet();
+		waitNanos.addAndGet(wait);
+		max(maxWaitNanos, wait);
+		return engine;
+	}
+
+	/**
+	 * Gives an engine back to the pool after resetting it to its baseline.
+	 * An engine that fails to reset is dropped from the pool.
+	 *
+	 * @param engine An engine taken from this pool.
+	 * @throws IllegalArgumentException If the engine is not from this pool.
+	 * @throws IllegalStateException    If the engine is not borrowed.
+	 */
+	public void release(ScriptEngine engine) {
+		if (engine == null)
+			throw new NullPointerException("engine is null");
+		if (!engines.contains(engine))
+			throw new IllegalArgumentException("engine is not from this pool");
+		synchronized (borrowed) {
+			if (!borrowed.remove(engine))
+				throw new IllegalStateException("engine is not borrowed");
+		}
+
+		long start = System.nanoTime();
+		try {
+			if (isolated) {
+				call(engine, "reset");
+			} else {
+				call(engine, "resetBindings");
+				synchronized (borrowed) {
+					if (borrowed.isEmpty())
+						call(keeper, "reset");
+				}
+			}
+		} catch (ScriptException e) {
+			discard(engine);
+			return;
+		}
+
+		long cost = System.nanoTime() - start;
+		resets.incrementAndGet();
+		resetNanos.addAndGet(cost);
+		max(maxResetNanos, cost);
+
+		if (closed)
+			discard(engine);
+		else
+			idle.add(engine);
+	}
+
+	/**
+	 * Drops the idle engines and stops handing out new ones. Engines still
+	 * borrowed are dropped when released.
+	 */
+	public void close() {
+		closed = true;
+		for (ScriptEngine engine = idle.poll(); engine != null; engine = idle.poll())
+			discard(engine);
+	}
+
+	/**
+	 * Returns the number of engines created by the pool and not dropped.
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	/**
+	 * Returns the number of engines waiting to be borrowed.
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Returns the most engines the pool will create.
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the number of successful calls to {@code borrow()}.
+	 */
+	public long getBorrowCount() {
+		return borrows.get();
+	}
+
+	/**
+	 * Returns the number of calls to {@code borrow()} that timed out.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Returns the total time spent in successful calls to {@code borrow()},
+	 * including the creation of new engines.
+	 */
+	public long getTotalWaitNanos() {
+		return waitNanos.get();
+	}
+
+	/**
+	 * Returns the longest time spent in a successful call to {@code borrow()}.
+	 */
+	public long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+
+	/**
+	 * Returns the number of engines reset to their baseline.
+	 */
+	public long getResetCount() {
+		return resets.get();
+	}
+
+	/**
+	 * Returns the total time spent resetting engines.
+	 */
+	public long getTotalResetNanos() {
+		return resetNanos.get();
+	}
+
+	/**
+	 * Returns the longest time spent resetting an engine.
+	 */
+	public long getMaxResetNanos() {
+		return maxResetNanos.get();
+	}
+
+	private boolean grow() {
+		for (int n = size.get(); n < maxSize; n = size.get()) {
+			if (size.compareAndSet(n, n + 1))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Creates an engine, runs a first script through it so the compiler is
+	 * loaded, and records its baseline. The engine is counted in the size
+	 * beforehand, and taken off it if this fails.
+	 *
+	 * On the shared runtime, the baseline of the first engine is the pool's.
+	 * It's recorded while borrowers are kept from starting, and since no
+	 * engine was handed out before it, it has none of their definitions.
+	 */
+	private ScriptEngine create()
+	throws ScriptException {
+		boolean created = false;
+		try {
+			ScriptEngine engine = isolated ? factory.getIsolatedScriptEngine() : factory.getScriptEngine();
+			engine.eval(WARM_UP);
+			synchronized (borrowed) {
+				call(engine, "snapshot");
+				if (!isolated && keeper == null)
+					keeper = engine;
+			}
+			engines.add(engine);
+			created = true;
+			return engine;
+		} finally {
+			if (!created)
+				size.decrementAndGet();
+		}
+	}
+
+	private void discard(ScriptEngine engine) {
+		if (engines.remove(engine))
+			size.decrementAndGet();
+	}
+
+	private static void call(ScriptEngine engine, String method)
+	throws ScriptException {
+		try {
+			Method m = engine.getClass().getMethod(method);
+			m.invoke(engine);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			throw new ScriptException(cause instanceof Exception ? (Exception) cause : e);
+		} catch (NoSuchMethodException e) {
+			throw new ScriptException(e);
+		} catch (IllegalAccessException e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	private static void max(AtomicLong max, long value) {
+		for (long current = max.get(); value > current; current = max.get()) {
+			if (max.compareAndSet(current, value))
+				return;
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds with one bucket per power of two,
+ * so percentiles are accurate to within a factor of two. Recording takes no
+ * locks and allocates nothing.
+ *
+ * @version 1.2
+ */
+final class LatencyHistogram {
+
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos) - (nanos == 0 ? 0 : 1));
+		count.increment();
+		total.add(nanos);
+		for (long m = max.get(); nanos > m; m = max.get()) {
+			if (max.compareAndSet(m, nanos))
+				break;
+		}
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	long getTotal() {
+		return total.sum();
+	}
+
+	/*
+	 * Returns the upper bound of the bucket that holds the given fraction
+	 * of the recorded durations, capped by the largest one.
+	 */
+	long percentile(double fraction) {
+		long n = 0;
+		for (int i = 0; i < 64; i++)
+			n += buckets.get(i);
+		if (n == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < 64; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return Math.min(i == 63 ? Long.MAX_VALUE : (2L << i) - 1, max.get());
+		}
+		return max.get();
+	}
+
+	/*
+	 * Returns count, totalNanos, meanNanos, maxNanos and the 50th, 90th
+	 * and 99th percentiles, in that order.
+	 */
+	Map<String, Long> summary() {
+		long c = getCount();
+		long t = getTotal();
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		map.put("count", c);
+		map.put("totalNanos", t);
+		map.put("meanNanos", c == 0 ? 0 : t / c);
+		map.put("maxNanos", max.get());
+		map.put("p50Nanos", percentile(0.50));
+		map.put("p90Nanos", percentile(0.90));
+		map.put("p99Nanos", percentile(0.99));
+		return map;
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+/**
+ * Receives the measurements taken by a {@code ClojureScriptEngine}. Set an
+ * instance as the value of the engine property {@code clojure.metrics.listener}
+ * to forward them to a metrics library.
+ * <p>
+ * Methods are called on the thread that made the call being measured, right
+ * after it, and should return quickly without throwing. All methods do
+ * nothing by default.
+ *
+ * @version 1.2
+ */
+public interface MetricsListener {
+
+	/**
+	 * Called after an {@code eval()} or the evaluation of a compiled script.
+	 *
+	 * @param compileNanos  Time spent reading and compiling the script; zero
+	 *                      if it was compiled before.
+	 * @param executeNanos  Time spent running the compiled code.
+	 */
+	default void evaluated(long compileNanos, long executeNanos) {
+	}
+
+	/**
+	 * Called after the bindings of the context are applied to their vars.
+	 *
+	 * @param count The number of vars that were set.
+	 * @param nanos Time spent.
+	 */
+	default void bindingsApplied(int count, long nanos) {
+	}
+
+	/**
+	 * Called after the vars changed by a call are copied to the bindings.
+	 *
+	 * @param nanos Time spent.
+	 */
+	default void bindingsCollected(long nanos) {
+	}
+
+	/**
+	 * Called after {@code invokeFunction()} returns or fails.
+	 *
+	 * @param function The name passed to {@code invokeFunction()}.
+	 * @param nanos    Time spent, including the setup of the call.
+	 */
+	default void invoked(String function, long nanos) {
+	}
+
+	/**
+	 * Called when the engine reports a failure as a {@code ScriptException}.
+	 *
+	 * @param cause The exception thrown by the script or the runtime.
+	 */
+	default void failed(Exception cause) {
+	}
+
+}
@@ -0,0 +1,301 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import clojure.lang.*;
+
+import javax.script.Bindings;
+import java.util.*;
+
+/**
+ * Implementation of {@code Bindings} backed by the vars of a Clojure namespace.
+ * <p>
+ * Reading an entry dereferences its var and writing one interns it, so the
+ * host program and the scripts share the same state and the engine has
+ * nothing to copy before or after each call. Keys follow the format used by
+ * the engine: {@code var} for a var in the backing namespace and
+ * {@code namespace/var} for a var elsewhere. Only vars interned in a
+ * namespace are its entries; those it refers to, such as the ones of
+ * {@code clojure.core}, are neither seen nor removed. Keys with a dot, such
+ * as the engine properties, are not valid var names and are kept in a plain
+ * map.
+ * <p>
+ * Iteration walks the vars interned in the backing namespace as it goes,
+ * followed by the dotted keys.
+ *
+ * @version 1.2
+ */
+public class NamespaceBindings
+	extends AbstractMap<String, Object>
+	implements Bindings {
+
+	private final Namespace ns;
+	private final Map<String, Object> properties =
+		Collections.synchronizedMap(new LinkedHashMap<String, Object>());
+
+	/**
+	 * Creates an instance backed by the passed namespace, which is created
+	 * if it doesn't exist.
+	 *
+	 * @param ns The name of the namespace for keys without a namespace.
+	 */
+	public NamespaceBindings(String ns) {
+		if (ns == null)
+			throw new NullPointerException("ns is null");
+
+		this.ns = Namespace.findOrCreate(Symbol.intern(ns));
+	}
+
+	/**
+	 * Returns the name of the backing namespace.
+	 *
+	 * @return The namespace for keys without a namespace.
+	 */
+	public String getNamespace() {
+		return ns.getName().getName();
+	}
+
+	/*
+	 * Keys must be non-empty strings, as required by Bindings.
+	 */
+	private static String checkKey(Object key) {
+		if (key == null)
+			throw new NullPointerException("key is null");
+		if (!(key instanceof String))
+			throw new ClassCastException("key is not a string");
+		if (((String) key).length() == 0)
+			throw new IllegalArgumentException("key is empty");
+		return (String) key;
+	}
+
+	private static boolean isProperty(String key) {
+		return key.indexOf('.') >= 0;
+	}
+
+	/*
+	 * Finds the var named by the key without creating it. Only vars interned
+	 * in the key's namespace count, not those it refers to, the same as when
+	 * iterating.
+	 */
+	private Var find(String key) {
+		Namespace target = ns;
+		String name = key;
+		int slash = key.indexOf('/');
+		if (slash >= 0) {
+			target = Namespace.find(Symbol.intern(key.substring(0, slash)));
+			name = key.substring(slash + 1);
+			if (target == null)
+				return null;
+		}
+		Object val = target.getMapping(Symbol.intern(name));
+		return (val instanceof Var && ((Var) val).ns == target) ? (Var) val : null;
+	}
+
+	@Override
+	public Object get(Object key) {
+		String k = checkKey(key);
+		if (isProperty(k))
+			return properties.get(k);
+
+		Var var = find(k);
+		return (var == null || !var.hasRoot()) ? null : var.getRawRoot();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		String k = checkKey(key);
+		if (isProperty(k))
+			return properties.containsKey(k);
+
+		Var var = find(k);
+		return var != null && var.hasRoot();
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		String k = checkKey(key);
+		if (isProperty(k))
+			return properties.put(k, value);
+
+		Namespace target = ns;
+		String name = k;
+		int slash = k.indexOf('/');
+		if (slash >= 0) {
+			target = Namespace.findOrCreate(Symbol.intern(k.substring(0, slash)));
+			name = k.substring(slash + 1);
+		}
+		Var var = target.intern(Symbol.intern(name));
+		Object previous = var.hasRoot() ? var.getRawRoot() : null;
+		var.bindRoot(value);
+		return previous;
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends Object> toMerge) {
+		if (toMerge == null)
+			throw new NullPointerException("toMerge is null");
+
+		for (Map.Entry<? extends String, ? extends Object> entry : toMerge.entrySet())
+			put(entry.getKey(), entry.getValue());
+	}
+
+	@Override
+	public Object remove(Object key) {
+		String k = checkKey(key);
+		if (isProperty(k))
+			return properties.remove(k);
+
+		Var var = find(k);
+		if (var == null)
+			return null;
+
+		Object previous = var.hasRoot() ? var.getRawRoot() : null;
+		var.ns.unmap(var.sym);
+		return previous;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				int size = properties.size();
+				for (Iterator<Map.Entry<String, Object>> it = new VarIterator(); it.hasNext(); it.next())
+					size++;
+				return size;
+			}
+		};
+	}
+
+	/*
+	 * Walks the bound vars interned in the backing namespace. The mappings
+	 * are a persistent map, so the walk sees the namespace as it was when
+	 * it started.
+	 */
+	private class VarIterator implements Iterator<Map.Entry<String, Object>> {
+		private ISeq seq = ns.getMappings().seq();
+		private Var next = advance();
+		private Var last;
+
+		private Var advance() {
+			for (; seq != null; seq = seq.next()) {
+				Object val = ((IMapEntry) seq.first()).getValue();
+				if (val instanceof Var && ((Var) val).ns == ns && ((Var) val).hasRoot()) {
+					seq = seq.next();
+					return (Var) val;
+				}
+			}
+			return null;
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Map.Entry<String, Object> next() {
+			if (next == null)
+				throw new NoSuchElementException();
+
+			last = next;
+			next = advance();
+			return new VarEntry(last);
+		}
+
+		public void remove() {
+			if (last == null)
+				throw new IllegalStateException();
+
+			ns.unmap(last.sym);
+			last = null;
+		}
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+		private final Iterator<Map.Entry<String, Object>> vars = new VarIterator();
+		private final Iterator<Map.Entry<String, Object>> props =
+			new ArrayList<Map.Entry<String, Object>>(properties.entrySet()).iterator();
+		private Iterator<Map.Entry<String, Object>> current = vars;
+		private Map.Entry<String, Object> last;
+
+		public boolean hasNext() {
+			return vars.hasNext() || props.hasNext();
+		}
+
+		public Map.Entry<String, Object> next() {
+			current = vars.hasNext() ? vars : props;
+			last = current.next();
+			return last;
+		}
+
+		public void remove() {
+			if (current == vars) {
+				vars.remove();
+			} else {
+				if (last == null)
+					throw new IllegalStateException();
+				properties.remove(last.getKey());
+			}
+			last = null;
+		}
+	}
+
+	/*
+	 * An entry whose value is read from, and written to, its var.
+	 */
+	private static final class VarEntry implements Map.Entry<String, Object> {
+		private final Var var;
+
+		VarEntry(Var var) {
+			this.var = var;
+		}
+
+		public String getKey() {
+			return var.sym.getName();
+		}
+
+		public Object getValue() {
+			return var.hasRoot() ? var.getRawRoot() : null;
+		}
+
+		public Object setValue(Object value) {
+			Object previous = getValue();
+			var.bindRoot(value);
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) obj;
+			Object value = getValue();
+			return getKey().equals(e.getKey())
+				&& (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			Object value = getValue();
+			return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+
+}
@@ -0,0 +1,325 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import clojure.lang.*;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When the namespaces that scripts create were last used, and which of them
+ * to remove once idle.
+ * <p>
+ * A namespace is used when a call runs in it, or calls one of its functions
+ * by name; one never used is taken as used when first seen. Namespaces that
+ * were there before the engine, those whose names start with
+ * {@code clojure}, and those of contexts and bindings still in use are never
+ * removed. A removed namespace is also taken off
+ * {@code *loaded-libs*}, so requiring it loads it again. Libraries compiled
+ * ahead of time can't be loaded twice, so their namespaces stay.
+ * <p>
+ * Sizes are estimates of the memory held by the values of a namespace's
+ * vars, found by walking them up to a number of objects. Values shared
+ * with other namespaces count in each one.
+ *
+ * @version 1.2
+ */
+final class NamespaceLifecycle {
+
+	private static final long SWEEP_MILLIS = 1000;
+	private static final int  MAX_OBJECTS  = 100000;
+
+	private static final Var LOADED_LIBS = RT.var("clojure.core", "*loaded-libs*");
+	private static final Var DISJ        = RT.var("clojure.core", "disj");
+
+	private final Set<Symbol> existing = new HashSet<Symbol>();
+	private final Map<Symbol, Long> used = new ConcurrentHashMap<Symbol, Long>();
+	private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+	private final AtomicLong evicted = new AtomicLong();
+
+	NamespaceLifecycle() {
+		for (ISeq seq = Namespace.all(); seq != null; seq = seq.next())
+			existing.add(((Namespace) seq.first()).getName());
+	}
+
+	long getEvictedCount() {
+		return evicted.get();
+	}
+
+	/**
+	 * Records the use of a namespace, given as a {@code Namespace} or by name.
+	 */
+	void touch(Object ns) {
+		Symbol name = (ns instanceof Namespace) ? ((Namespace) ns).getName() : Symbol.intern(ns.toString());
+		used.put(name, System.currentTimeMillis());
+	}
+
+	/**
+	 * Whether it's time to look for namespaces to remove: at most once a
+	 * second, or once per idle time if that's shorter.
+	 */
+	boolean due(long idleMillis) {
+		long now = System.currentTimeMillis();
+		long last = lastSweep.get();
+		long interval = (idleMillis > 0) ? Math.min(idleMillis, SWEEP_MILLIS) : SWEEP_MILLIS;
+		return now - last >= interval && lastSweep.compareAndSet(last, now);
+	}
+
+	/**
+	 * Removes the namespaces idle for longer than the passed time, then the
+	 * least recently used ones beyond the maximum count.
+	 *
+	 * @param idleMillis The idle time to remove after, or a negative number.
+	 * @param maxCount   The number of namespaces to keep, or a negative number.
+	 * @param keep       Names of namespaces not to remove.
+	 * @return The namespaces removed.
+	 */
+	synchronized List<Namespace> evict(long idleMillis, int maxCount, Set<Symbol> keep) {
+		long now = System.currentTimeMillis();
+		lastSweep.set(now);
+
+		Set<Symbol> all = new HashSet<Symbol>();
+		List<Symbol> candidates = new ArrayList<Symbol>();
+		for (ISeq seq = Namespace.all(); seq != null; seq = seq.next()) {
+			Symbol name = ((Namespace) seq.first()).getName();
+			all.add(name);
+			if (!evictable(name) || keep.contains(name))
+				continue;
+			if (!used.containsKey(name))
+				used.put(name, now);
+			candidates.add(name);
+		}
+		used.keySet().retainAll(all);
+
+		final Map<Symbol, Long> times = new HashMap<Symbol, Long>();
+		for (Symbol name : candidates) {
+			Long time = used.get(name);
+			times.put(name, (time == null) ? now : time);
+		}
+		Collections.sort(candidates, new Comparator<Symbol>() {
+			public int compare(Symbol a, Symbol b) {
+				return Long.compare(times.get(a), times.get(b));
+			}
+		});
+
+		List<Namespace> removed = new ArrayList<Namespace>();
+		int left = candidates.size();
+		for (Symbol name : candidates) {
+			boolean idle = idleMillis >= 0 && now - times.get(name) > idleMillis;
+			boolean over = maxCount >= 0 && left > maxCount;
+			if (!idle && !over)
+				break;
+			Namespace ns = remove(name);
+			if (ns != null)
+				removed.add(ns);
+			left--;
+		}
+		evicted.addAndGet(removed.size());
+		return removed;
+	}
+
+	private boolean evictable(Symbol name) {
+		return !name.getName().startsWith("clojure") && !existing.contains(name)
+		    && !ContextNamespaces.owns(name) && !compiled(name);
+	}
+
+	private Namespace remove(Symbol name) {
+		Namespace ns = unload(name);
+		used.remove(name);
+		return ns;
+	}
+
+	/**
+	 * Removes a namespace and takes it off {@code *loaded-libs*}, so
+	 * requiring it loads it again. The namespace of a library compiled ahead
+	 * of time is left as it is.
+	 *
+	 * @return The namespace removed, or {@code null} if there was none.
+	 */
+	static Namespace unload(final Symbol name) {
+		if (compiled(name))
+			return null;
+		Namespace ns = Namespace.remove(name);
+		final Object libs = LOADED_LIBS.deref();
+		if (libs instanceof Ref) {
+			try {
+				LockingTransaction.runInTransaction(new Callable<Object>() {
+					public Object call() {
+						return ((Ref) libs).commute(DISJ, RT.list(name));
+					}
+				});
+			} catch (Exception e) {
+				throw Util.sneakyThrow(e);
+			}
+		}
+		return ns;
+	}
+
+	/*
+	 * Whether a namespace has a loader class on the class path. Requiring it
+	 * runs that class, which sets the namespace up only the first time.
+	 */
+	private static boolean compiled(Symbol name) {
+		String path = name.getName().replace('-', '_').replace('.', '/') + RT.LOADER_SUFFIX + ".class";
+		return RT.baseLoader().getResource(path) != null;
+	}
+
+	/**
+	 * Returns a line per namespace outside {@code clojure}, the largest
+	 * first, with its name, the number of its vars, their estimated size in
+	 * bytes, the milliseconds since it was last used ({@code null} if it
+	 * hasn't been seen), and whether it may be removed.
+	 */
+	List<Map<String, Object>> report() {
+		long now = System.currentTimeMillis();
+		List<Map<String, Object>> report = new ArrayList<Map<String, Object>>();
+		for (ISeq seq = Namespace.all(); seq != null; seq = seq.next()) {
+			Namespace ns = (Namespace) seq.first();
+			Symbol name = ns.getName();
+			if (name.getName().startsWith("clojure"))
+				continue;
+
+			int vars = 0;
+			Sizer sizer = new Sizer();
+			for (ISeq mseq = ns.getMappings().seq(); mseq != null; mseq = mseq.next()) {
+				Object val = ((IMapEntry) mseq.first()).val();
+				if (val instanceof Var && ((Var) val).ns == ns) {
+					Var var = (Var) val;
+					vars++;
+					sizer.total += 64;
+					if (var.hasRoot())
+						sizer.add(var.getRawRoot());
+				} else {
+					sizer.total += 48;
+				}
+			}
+
+			Long time = used.get(name);
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			entry.put("namespace", name.getName());
+			entry.put("vars", vars);
+			entry.put("bytes", sizer.total);
+			entry.put("idleMillis", (time == null) ? null : Long.valueOf(now - time));
+			entry.put("evictable", evictable(name));
+			report.add(entry);
+		}
+
+		Collections.sort(report, new Comparator<Map<String, Object>>() {
+			public int compare(Map<String, Object> a, Map<String, Object> b) {
+				return Long.compare((Long) b.get("bytes"), (Long) a.get("bytes"));
+			}
+		});
+		return report;
+	}
+
+	/*
+	 * Adds up rough sizes of the objects reachable from values through
+	 * collections, references and arrays. Interned objects such as keywords
+	 * and symbols, and functions' closed-over values, aren't counted, nor
+	 * are the parts of lazy sequences not yet realized.
+	 */
+	private static final class Sizer {
+
+		final Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+		long total;
+		int objects;
+
+		void add(Object root) {
+			ArrayDeque<Object> stack = new ArrayDeque<Object>();
+			push(stack, root);
+			while (!stack.isEmpty() && objects < MAX_OBJECTS) {
+				Object o = stack.pop();
+				if (o instanceof Keyword || o instanceof Symbol || o instanceof Boolean
+				    || o instanceof Var || o instanceof Namespace || o instanceof Class || seen.put(o, Boolean.TRUE) != null)
+					continue;
+				objects++;
+				total += size(o, stack);
+			}
+		}
+
+		private static long size(Object o, ArrayDeque<Object> stack) {
+			if (o instanceof String)
+				return 40 + 2L * ((String) o).length();
+			if (o instanceof Long || o instanceof Integer || o instanceof Double || o instanceof Character)
+				return 16;
+			if (o instanceof Number)
+				return 48;
+			if (o.getClass().isArray())
+				return array(o, stack);
+			if (o instanceof IPending && !((IPending) o).isRealized())
+				return 32;
+			if (o instanceof ISeq) {
+				// Walked only as far as it's realized; infinite ones stop at the limit.
+				long bytes = 0;
+				for (ISeq seq = (ISeq) o; seq != null && bytes < 32L * MAX_OBJECTS; ) {
+					push(stack, seq.first());
+					bytes += 32;
+					Object more = seq.more();
+					if (more instanceof IPending && !((IPending) more).isRealized())
+						break;
+					seq = RT.seq(more);
+				}
+				return bytes;
+			}
+			if (o instanceof Map) {
+				for (Object e : ((Map<?, ?>) o).entrySet()) {
+					if (!push(stack, ((Map.Entry<?, ?>) e).getKey()) || !push(stack, ((Map.Entry<?, ?>) e).getValue()))
+						break;
+				}
+				return 48 + 40L * ((Map<?, ?>) o).size();
+			}
+			if (o instanceof Collection) {
+				for (Object e : (Collection<?>) o)
+					if (!push(stack, e))
+						break;
+				return 48 + 16L * ((Collection<?>) o).size();
+			}
+			if (o instanceof IDeref && !(o instanceof IFn)) {
+				push(stack, ((IDeref) o).deref());
+				return 32;
+			}
+			return 24;
+		}
+
+		/*
+		 * Pushes an object to be walked, unless the walk is already as long
+		 * as it may get.
+		 */
+		private static boolean push(ArrayDeque<Object> stack, Object o) {
+			if (stack.size() >= MAX_OBJECTS)
+				return false;
+			if (o != null)
+				stack.push(o);
+			return true;
+		}
+
+		private static long array(Object o, ArrayDeque<Object> stack) {
+			if (o instanceof Object[]) {
+				Object[] a = (Object[]) o;
+				for (Object e : a)
+					if (!push(stack, e))
+						break;
+				return 16 + 8L * a.length;
+			}
+			int length = java.lang.reflect.Array.getLength(o);
+			Class<?> type = o.getClass().getComponentType();
+			int width = (type == long.class || type == double.class) ? 8
+			          : (type == int.class || type == float.class) ? 4
+			          : (type == short.class || type == char.class) ? 2 : 1;
+			return 16 + (long) width * length;
+		}
+
+	}
+
+}
@@ -0,0 +1,262 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+
+/**
+ * A writer for {@code *out*} and {@code *err*} that collects the output of a
+ * single call in a large buffer and passes it on in bulk, when the buffer
+ * fills up and when the call ends, rather than on every write and flush.
+ * <p>
+ * The output goes either to a writer, such as the one of the context, or
+ * encoded to a channel through a byte buffer. Writes take no locks: the
+ * buffer belongs to the thread that made the call. Other threads, such as
+ * futures started by the script, write straight through to the target. The
+ * buffers of a thread are kept for its next call.
+ * <p>
+ * Like {@code PrintWriter}, this writer doesn't throw. An error writing to
+ * the target drops the output it was writing, and the first one is kept
+ * for the engine to raise once the call ends.
+ *
+ * @version 1.2
+ */
+final class OutputBuffer extends Writer {
+
+	private static final int POOLED = 4;
+	private static final ThreadLocal<ArrayDeque<char[]>> chars = new ThreadLocal<ArrayDeque<char[]>>() {
+		@Override
+		protected ArrayDeque<char[]> initialValue() {
+			return new ArrayDeque<char[]>(POOLED);
+		}
+	};
+	private static final ThreadLocal<ByteBuffer> bytes = new ThreadLocal<ByteBuffer>();
+
+	private final Writer target;
+	private final WritableByteChannel channel;
+	private final CharsetEncoder encoder;
+	private final Charset charset;
+	private ByteBuffer out;
+	private char[] buf;
+	private int pos;
+	private volatile Thread owner;
+	private volatile IOException error;
+
+	/**
+	 * Creates a buffer that writes to a writer.
+	 *
+	 * @param target Where the output goes.
+	 * @param size   The number of chars to collect before writing them.
+	 */
+	OutputBuffer(Writer target, int size) {
+		this(target, null, null, size);
+	}
+
+	/**
+	 * Creates a buffer that encodes its output to a channel.
+	 *
+	 * @param channel Where the output goes.
+	 * @param charset The encoding of the output.
+	 * @param size    The number of chars to collect before writing them.
+	 */
+	OutputBuffer(WritableByteChannel channel, Charset charset, int size) {
+		this(null, channel, charset, size);
+	}
+
+	private OutputBuffer(Writer target, WritableByteChannel channel, Charset charset, int size) {
+		this.target = target;
+		this.channel = channel;
+		this.charset = charset;
+		this.owner = Thread.currentThread();
+
+		buf = chars.get().pollLast();
+		if (buf == null || buf.length != size)
+			buf = new char[size];
+
+		if (channel != null) {
+			encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			out = bytes.get();
+			int capacity = (int) Math.ceil(size * encoder.maxBytesPerChar());
+			if (out == null || out.capacity() < capacity)
+				out = ByteBuffer.allocate(capacity);
+			bytes.set(null);
+		} else {
+			encoder = null;
+		}
+	}
+
+	@Override
+	public void write(int c) {
+		if (Thread.currentThread() != owner) {
+			direct(new char[] { (char) c }, 0, 1);
+			return;
+		}
+		if (pos == buf.length)
+			drain(false);
+		buf[pos++] = (char) c;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		if (Thread.currentThread() != owner) {
+			direct(cbuf, off, len);
+			return;
+		}
+		while (len > 0) {
+			if (pos == buf.length)
+				drain(false);
+			int n = Math.min(len, buf.length - pos);
+			System.arraycopy(cbuf, off, buf, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		if (Thread.currentThread() != owner) {
+			direct(str.toCharArray(), off, len);
+			return;
+		}
+		while (len > 0) {
+			if (pos == buf.length)
+				drain(false);
+			int n = Math.min(len, buf.length - pos);
+			str.getChars(off, off + n, buf, pos);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Does nothing for the owning thread, so that {@code println} doesn't
+	 * defeat the buffer; the output is written when the buffer fills up or
+	 * the call ends.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Writes what is left in the buffer and gives the buffers back to the
+	 * thread. Later writes from any thread go straight to the target.
+	 */
+	@Override
+	public void close() {
+		if (owner != Thread.currentThread())
+			return;
+
+		drain(true);
+		ArrayDeque<char[]> pool = chars.get();
+		if (pool.size() < POOLED)
+			pool.addLast(buf);
+		if (out != null)
+			bytes.set(out);
+		buf = null;
+		out = null;
+		owner = null;
+	}
+
+	/**
+	 * Returns the first error writing to the target, or {@code null} if
+	 * there was none.
+	 */
+	IOException getError() {
+		return error;
+	}
+
+	/*
+	 * Writes the buffered chars to the target. An encoder may leave a char
+	 * behind, the first half of a surrogate pair, until the end of input.
+	 */
+	private void drain(boolean endOfInput) {
+		try {
+			if (channel == null) {
+				target.write(buf, 0, pos);
+				target.flush();
+				pos = 0;
+				return;
+			}
+
+			CharBuffer in = CharBuffer.wrap(buf, 0, pos);
+			for (;;) {
+				CoderResult result = encoder.encode(in, out, endOfInput);
+				if (result.isOverflow()) {
+					writeBytes();
+					continue;
+				}
+				break;
+			}
+			if (endOfInput) {
+				while (encoder.flush(out).isOverflow())
+					writeBytes();
+				encoder.reset();
+			}
+			writeBytes();
+
+			int left = in.remaining();
+			System.arraycopy(buf, pos - left, buf, 0, left);
+			pos = left;
+		} catch (IOException e) {
+			failed(e);
+			pos = 0;
+			if (out != null)
+				out.clear();
+		}
+	}
+
+	private void writeBytes()
+	throws IOException {
+		out.flip();
+		while (out.hasRemaining())
+			channel.write(out);
+		out.clear();
+	}
+
+	/*
+	 * Writes from threads other than the owner, or after the call ended.
+	 */
+	private void direct(char[] cbuf, int off, int len) {
+		try {
+			synchronized (this) {
+				if (channel == null) {
+					target.write(cbuf, off, len);
+					target.flush();
+				} else {
+					ByteBuffer b = charset.encode(CharBuffer.wrap(cbuf, off, len));
+					while (b.hasRemaining())
+						channel.write(b);
+				}
+			}
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	private void failed(IOException e) {
+		if (error == null)
+			error = e;
+	}
+
+}
@@ -0,0 +1,275 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import clojure.lang.Compiler;
+import clojure.lang.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Counts how many times the reflective calls of evaluated scripts run.
+ * <p>
+ * Each top-level form is first compiled on its own to collect the reflection
+ * warnings it gives, with their lines and columns. The lists at those places
+ * are then wrapped in a call to {@code hit()} with the number of their site,
+ * so running the form counts every call that goes through reflection. A form
+ * whose instrumented version doesn't compile is left as it was.
+ * <p>
+ * This class is public only so that the instrumented code can call
+ * {@code hit()}.
+ *
+ * @version 1.2
+ */
+public final class ReflectionProfiler {
+
+	private static final Pattern WARNING = Pattern.compile("Reflection warning, (.*):(\\d+):(\\d+) - (.*)");
+	private static final int     MAX_FORM = 80;
+
+	private static final Symbol DO      = Symbol.intern("do");
+	private static final Symbol FN      = Symbol.intern("fn*");
+	private static final Symbol QUOTE   = Symbol.intern("quote");
+	private static final Symbol SET     = Symbol.intern("set!");
+	private static final Symbol CATCH   = Symbol.intern("catch");
+	private static final Symbol FINALLY = Symbol.intern("finally");
+	private static final Symbol HIT     = Symbol.intern(ReflectionProfiler.class.getName(), "hit");
+	private static final Keyword LINE   = Keyword.intern("line");
+	private static final Keyword COLUMN = Keyword.intern("column");
+	private static final Var    WARN_ON_REFLECTION = RT.var("clojure.core", "*warn-on-reflection*");
+
+	private static volatile LongAdder[] counters = new LongAdder[16];
+	private static int next;
+
+	private final Map<String, Site> sites = new ConcurrentHashMap<String, Site>();
+
+	/**
+	 * Counts one run of a reflective call site. Called by instrumented code.
+	 *
+	 * @param id The number of the site.
+	 */
+	public static void hit(long id) {
+		counters[(int) id].increment();
+	}
+
+	private static synchronized int register() {
+		LongAdder[] a = counters;
+		if (next == a.length)
+			a = Arrays.copyOf(a, a.length * 2);
+		a[next] = new LongAdder();
+		counters = a;
+		return next++;
+	}
+
+	/**
+	 * Returns a form with its reflective call sites counted, or the form
+	 * itself if it has none.
+	 *
+	 * @param form   A top-level form, already expanded.
+	 * @param source The form as read, whose line is used if the form has none.
+	 */
+	Object instrument(Object form, Object source) {
+		if (form instanceof IObj && RT.meta(form) == null && RT.meta(source) != null)
+			form = ((IObj) form).withMeta(RT.meta(source));
+
+		Map<String, String> warnings = warnings(form);
+		if (warnings.isEmpty())
+			return form;
+
+		String ns = RT.CURRENT_NS.deref().toString();
+		Object result = walk(form, ns, warnings, null);
+		for (Map.Entry<String, String> e : warnings.entrySet())
+			site(ns + ":" + e.getKey(), null, e.getValue());
+
+		try {
+			compile(result);
+			return result;
+		} catch (RuntimeException e) {
+			return form;
+		}
+	}
+
+	/*
+	 * Compiles a form, without running it, to collect its reflection
+	 * warnings by line and column. A form that doesn't compile gives none;
+	 * its error is left for the compilation that follows.
+	 */
+	private static Map<String, String> warnings(Object form) {
+		StringWriter text = new StringWriter();
+		Var.pushThreadBindings(RT.map(RT.ERR, new PrintWriter(text),
+		                              WARN_ON_REFLECTION, Boolean.TRUE));
+		try {
+			compile(form);
+		} catch (RuntimeException e) {
+			return Collections.emptyMap();
+		} finally {
+			Var.popThreadBindings();
+		}
+
+		Map<String, String> warnings = new LinkedHashMap<String, String>();
+		for (String line : text.toString().split("\\r?\\n")) {
+			Matcher m = WARNING.matcher(line);
+			if (m.matches()) {
+				String at = m.group(2) + ":" + m.group(3);
+				String known = warnings.get(at);
+				warnings.put(at, (known == null) ? m.group(4) : known + " " + m.group(4));
+			}
+		}
+		return warnings;
+	}
+
+	private static void compile(Object form) {
+		Compiler.eval(RT.list(FN, PersistentVector.EMPTY, form));
+	}
+
+	/*
+	 * Rebuilds a form with every list found at a warning's place wrapped in
+	 * a call to hit(). The warnings matched are taken off the map. Quoted
+	 * forms, the targets of set! and the clauses of try are left alone, and
+	 * so are lists within a wrapped one that share its place.
+	 */
+	private Object walk(Object form, String ns, Map<String, String> warnings, String enclosing) {
+		if (form instanceof IRecord || form instanceof IType)
+			return form;
+		if (form instanceof ISeq || form instanceof IPersistentList) {
+			ISeq seq = RT.seq(form);
+			if (seq == null)
+				return form;
+			Object head = seq.first();
+			if (QUOTE.equals(head))
+				return form;
+
+			String at = place(form);
+			String warning = (at == null || at.equals(enclosing)) ? null : warnings.remove(at);
+
+			List<Object> items = new ArrayList<Object>();
+			int i = 0;
+			for (; seq != null; seq = seq.next(), i++) {
+				Object item = seq.first();
+				boolean target = SET.equals(head) && i == 1;
+				items.add(target ? item : walk(item, ns, warnings, (warning != null) ? at : enclosing));
+			}
+			Object result = withMeta(PersistentList.create(items), form);
+
+			if (warning == null || CATCH.equals(head) || FINALLY.equals(head))
+				return result;
+			Site site = site(ns + ":" + at, RT.printString(form), warning);
+			return RT.list(DO, RT.list(HIT, Long.valueOf(site.id)), result);
+		}
+		if (form instanceof IPersistentVector) {
+			IPersistentVector v = (IPersistentVector) form;
+			ITransientCollection t = PersistentVector.EMPTY.asTransient();
+			for (int i = 0; i < v.count(); i++)
+				t = t.conj(walk(v.nth(i), ns, warnings, enclosing));
+			return withMeta(t.persistent(), form);
+		}
+		if (form instanceof IPersistentMap) {
+			IPersistentMap m = PersistentHashMap.EMPTY;
+			for (ISeq s = RT.seq(form); s != null; s = s.next()) {
+				IMapEntry e = (IMapEntry) s.first();
+				m = m.assoc(walk(e.key(), ns, warnings, enclosing), walk(e.val(), ns, warnings, enclosing));
+			}
+			return withMeta(m, form);
+		}
+		if (form instanceof IPersistentSet) {
+			IPersistentSet set = PersistentHashSet.EMPTY;
+			for (ISeq s = RT.seq(form); s != null; s = s.next())
+				set = (IPersistentSet) set.cons(walk(s.first(), ns, warnings, enclosing));
+			return withMeta(set, form);
+		}
+		return form;
+	}
+
+	private static String place(Object form) {
+		IPersistentMap meta = RT.meta(form);
+		if (meta == null || meta.valAt(LINE) == null)
+			return null;
+		Object column = meta.valAt(COLUMN);
+		return meta.valAt(LINE) + ":" + ((column == null) ? "0" : column);
+	}
+
+	private static Object withMeta(Object form, Object source) {
+		IPersistentMap meta = RT.meta(source);
+		return (meta == null) ? form : ((IObj) form).withMeta(meta);
+	}
+
+	/*
+	 * Returns the site of a warning, which is registered the first time it
+	 * is seen. Scripts evaluated again get the same sites.
+	 */
+	private Site site(String place, String form, String warning) {
+		String key = place + " " + form + " " + warning;
+		Site site = sites.get(key);
+		if (site == null) {
+			synchronized (sites) {
+				site = sites.get(key);
+				if (site == null) {
+					site = new Site(register(), place, form, warning);
+					sites.put(key, site);
+				}
+			}
+		}
+		return site;
+	}
+
+	/**
+	 * Returns the sites seen so far, those that ran most first. Each one is
+	 * a map with the keys {@code site} (namespace, line and column),
+	 * {@code form} (the start of the code, or {@code null} if it couldn't be
+	 * told), {@code warning} and {@code count}.
+	 */
+	List<Map<String, Object>> report() {
+		List<Site> list = new ArrayList<Site>(sites.values());
+		final Map<Site, Long> counts = new HashMap<Site, Long>();
+		LongAdder[] a = counters;
+		for (Site site : list)
+			counts.put(site, a[site.id].sum());
+		Collections.sort(list, new Comparator<Site>() {
+			public int compare(Site x, Site y) {
+				int c = Long.compare(counts.get(y), counts.get(x));
+				return (c != 0) ? c : Integer.compare(x.id, y.id);
+			}
+		});
+
+		List<Map<String, Object>> report = new ArrayList<Map<String, Object>>();
+		for (Site site : list) {
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			entry.put("site", site.place);
+			entry.put("form", site.form);
+			entry.put("warning", site.warning);
+			entry.put("count", counts.get(site));
+			report.add(entry);
+		}
+		return report;
+	}
+
+	private static final class Site {
+
+		final int id;
+		final String place;
+		final String form;
+		final String warning;
+
+		Site(int id, String place, String form, String warning) {
+			this.id = id;
+			this.place = place;
+			this.form = (form == null || form.length() <= MAX_FORM) ? form : form.substring(0, MAX_FORM - 3) + "...";
+			this.warning = warning;
+		}
+
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A class loader that holds its own copy of the Clojure runtime and of the
+ * script engine.
+ * <p>
+ * Classes under {@code clojure.} are defined by this loader instead of its
+ * parent, so each instance gets its own {@code RT}, namespaces and vars. The
+ * classes that the host program shares with every runtime, such as the
+ * factory, still come from the parent. The class files are read from the
+ * parent's resources and their bytes are shared by all runtimes, through soft
+ * references keyed by the resource's URL: a runtime created while the bytes
+ * are still held doesn't read them again, and the heap can take them back
+ * when it runs short, in which case the next runtime reads them anew.
+ * <p>
+ * This class must not refer to Clojure, since it is loaded by the factory.
+ *
+ * @version 1.2
+ */
+final class RuntimeClassLoader extends ClassLoader {
+
+	private static final Set<String> SHARED = new HashSet<String>(Arrays.asList(
+		"clojure.contrib.jsr223.ClojureScriptEngineFactory",
+		"clojure.contrib.jsr223.EngineMetricsMXBean",
+		"clojure.contrib.jsr223.EnginePool",
+		"clojure.contrib.jsr223.MetricsListener",
+		"clojure.contrib.jsr223.RuntimeClassLoader"));
+
+	private static final ConcurrentMap<String, Bytes> BYTES = new ConcurrentHashMap<String, Bytes>();
+	private static final ReferenceQueue<byte[]> QUEUE = new ReferenceQueue<byte[]>();
+
+	private final String tenant;
+	private final AtomicInteger classCount = new AtomicInteger();
+	private final AtomicLong byteCount = new AtomicLong();
+
+	/**
+	 * Creates a runtime that looks up its classes through the passed loader.
+	 *
+	 * @param tenant The name of the runtime, or {@code null} for one that
+	 *               belongs to a single engine.
+	 * @param parent The loader of the host program.
+	 */
+	RuntimeClassLoader(String tenant, ClassLoader parent) {
+		super(parent);
+		this.tenant = tenant;
+	}
+
+	String getTenant() {
+		return tenant;
+	}
+
+	/**
+	 * Returns the number of classes defined by this runtime.
+	 */
+	int getClassCount() {
+		return classCount.get();
+	}
+
+	/**
+	 * Returns the total size of the class files defined by this runtime.
+	 */
+	long getByteCount() {
+		return byteCount.get();
+	}
+
+	@Override
+	protected Class<?> loadClass(String className, boolean resolve)
+	throws ClassNotFoundException {
+		if (!className.startsWith("clojure.") || SHARED.contains(className))
+			return super.loadClass(className, resolve);
+
+		synchronized (getClassLoadingLock(className)) {
+			Class<?> c = findLoadedClass(className);
+			if (c == null) {
+				byte[] b = bytecode(className);
+				if (b == null)
+					return super.loadClass(className, resolve);
+
+				c = defineClass(className, b, 0, b.length);
+				classCount.incrementAndGet();
+				byteCount.addAndGet(b.length);
+			}
+			if (resolve)
+				resolveClass(c);
+			return c;
+		}
+	}
+
+	/*
+	 * Returns the class file from the parent, or null if there's none. The
+	 * bytes are shared, so they must not be changed; defineClass() copies
+	 * them.
+	 */
+	private byte[] bytecode(String className)
+	throws ClassNotFoundException {
+		URL url = getParent().getResource(className.replace('.', '/') + ".class");
+		if (url == null)
+			return null;
+
+		for (Object old = QUEUE.poll(); old != null; old = QUEUE.poll())
+			BYTES.remove(((Bytes) old).key, old);
+
+		String key = url.toString();
+		Bytes ref = BYTES.get(key);
+		byte[] b = (ref == null) ? null : ref.get();
+		if (b == null) {
+			b = read(className, url);
+			BYTES.put(key, new Bytes(key, b));
+		}
+		return b;
+	}
+
+	private static byte[] read(String className, URL url)
+	throws ClassNotFoundException {
+		byte[] b;
+		try {
+			InputStream in = url.openStream();
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+					out.write(buffer, 0, n);
+				b = out.toByteArray();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new ClassNotFoundException(className, e);
+		}
+
+		return b;
+	}
+
+	/*
+	 * The bytes of a class file, which the heap may take back.
+	 */
+	private static final class Bytes extends SoftReference<byte[]> {
+
+		final String key;
+
+		Bytes(String key, byte[] bytes) {
+			super(bytes, QUEUE);
+			this.key = key;
+		}
+
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import clojure.lang.DynamicClassLoader;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The class loaders under which the engine's calls compile, one per call,
+ * so the classes compiled for each script can be told apart and unloaded.
+ * <p>
+ * Clojure registers every class it compiles in a cache shared by all its
+ * class loaders, which holds them through soft references: they're kept
+ * until the heap runs short, however full the metaspace gets. Only the
+ * loaders of the most recent calls, up to the retention, keep that
+ * registration for the classes of their top-level forms. Past it, those
+ * classes are taken off the cache, in batches, and are unloaded along with
+ * their loader as soon as nothing else refers to them. Named classes, such
+ * as those of {@code deftype} or of functions compiled with direct linking,
+ * stay registered, since other scripts look them up by name.
+ * <p>
+ * Clojure doesn't expose that cache, so it's reached by reflection through
+ * the private field {@code DynamicClassLoader.classCache}. If the field is
+ * missing, isn't a map, or can't be made accessible, as in a different
+ * Clojure version or under a security manager, nothing is taken off the
+ * cache: each call still gets its own loader, but its classes are kept
+ * until the soft references are cleared, as they would be without a
+ * retention.
+ *
+ * @version 1.2
+ */
+final class ScriptLoaders {
+
+	private static final int    SWEEP = 16;
+	private static final String EVAL  = "$eval";
+	private static final Map<String, Reference<Class<?>>> CLASSES = classes();
+
+	private final int retention;
+	private final ArrayDeque<ScriptLoader> retained = new ArrayDeque<ScriptLoader>();
+	private final ReferenceQueue<ScriptLoader> queue = new ReferenceQueue<ScriptLoader>();
+	private final Set<Reference<ScriptLoader>> live = new HashSet<Reference<ScriptLoader>>();
+	private int released;
+	private long created;
+
+	/**
+	 * Creates loaders that keep the classes of the last calls registered.
+	 *
+	 * @param retention The number of calls whose classes stay registered.
+	 */
+	ScriptLoaders(int retention) {
+		this.retention = retention;
+	}
+
+	int getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Returns the loader of a new call, releasing the oldest one beyond
+	 * the retention.
+	 *
+	 * @param parent The loader the call would compile under otherwise.
+	 */
+	synchronized ClassLoader next(ClassLoader parent) {
+		ScriptLoader loader = new ScriptLoader(parent);
+		created++;
+		expunge();
+		live.add(new WeakReference<ScriptLoader>(loader, queue));
+		retained.addLast(loader);
+		while (retained.size() > retention) {
+			retained.removeFirst().released = true;
+			released++;
+		}
+		if (released >= SWEEP) {
+			sweep();
+			released = 0;
+		}
+		return loader;
+	}
+
+	/**
+	 * Returns the number of loaders created.
+	 */
+	synchronized long getCreatedCount() {
+		return created;
+	}
+
+	/**
+	 * Returns the number of loaders that haven't been garbage collected.
+	 */
+	synchronized int getLiveCount() {
+		expunge();
+		return live.size();
+	}
+
+	private void expunge() {
+		for (Reference<? extends ScriptLoader> ref = queue.poll(); ref != null; ref = queue.poll())
+			live.remove(ref);
+	}
+
+	/*
+	 * Takes off Clojure's cache the classes of top-level forms compiled
+	 * under released loaders. Their names have an $eval part, which no
+	 * script could refer to.
+	 */
+	private static void sweep() {
+		if (CLASSES == null)
+			return;
+		Iterator<Map.Entry<String, Reference<Class<?>>>> it = CLASSES.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Reference<Class<?>>> e = it.next();
+			if (e.getKey().indexOf(EVAL) < 0)
+				continue;
+			Class<?> c = e.getValue().get();
+			if (c == null)
+				continue;
+			for (ClassLoader l = c.getClassLoader(); l != null; l = l.getParent()) {
+				if (l instanceof ScriptLoader) {
+					if (((ScriptLoader) l).released)
+						it.remove();
+					break;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Clojure's cache of compiled classes, or null if it can't be reached,
+	 * in which case the classes are left to its soft references.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Reference<Class<?>>> classes() {
+		try {
+			Field field = DynamicClassLoader.class.getDeclaredField("classCache");
+			field.setAccessible(true);
+			Object value = field.get(null);
+			return (value instanceof ConcurrentMap) ? (Map<String, Reference<Class<?>>>) value : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/*
+	 * The loader of a call. The classes of its scripts are defined by the
+	 * loaders that Clojure creates under it.
+	 */
+	private static final class ScriptLoader extends DynamicClassLoader {
+
+		volatile boolean released;
+
+		ScriptLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Runs the engine through its startup path once: discovery of the factory,
+ * boot of the Clojure runtime, eval, compile and invoke. It's meant for
+ * training a class data sharing archive, as in
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=clojure-jsr223.jsa \
+ *      -cp clojure-jsr223.jar:clojure.jar clojure.contrib.jsr223.StartupTraining
+ * </pre>
+ * and for measuring how long startup takes with and without one:
+ * <pre>
+ * java -XX:SharedArchiveFile=clojure-jsr223.jsa \
+ *      -cp clojure-jsr223.jar:clojure.jar clojure.contrib.jsr223.StartupTraining
+ * </pre>
+ * The arguments name namespaces to load as well, so that the archive also
+ * covers the libraries the application requires. Each step's time is
+ * printed in milliseconds.
+ *
+ * @version 1.2
+ */
+public final class StartupTraining {
+
+	private StartupTraining() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		long jvm = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+		long start = System.nanoTime();
+
+		ScriptEngine engine = new ScriptEngineManager().getEngineByName("Clojure");
+		long boot = System.nanoTime();
+
+		StringBuilder require = new StringBuilder("(require");
+		for (String ns : args)
+			require.append(" '").append(ns);
+		require.append(')');
+		engine.eval(require.toString());
+		long preload = System.nanoTime();
+
+		engine.eval("(defn training-mid [low high] (/ (+ low high) 2))");
+		long eval = System.nanoTime();
+
+		((Invocable) engine).invokeFunction("training-mid", 10, 20);
+		long invoke = System.nanoTime();
+
+		CompiledScript script = ((Compilable) engine).compile("(training-mid 1 2)");
+		script.eval();
+		long compile = System.nanoTime();
+
+		System.out.println("jvm-to-main " + jvm);
+		System.out.println("boot        " + millis(start, boot));
+		System.out.println("preload     " + millis(boot, preload));
+		System.out.println("eval        " + millis(preload, eval));
+		System.out.println("invoke      " + millis(eval, invoke));
+		System.out.println("compile     " + millis(invoke, compile));
+		System.out.println("total       " + (jvm + millis(start, compile)));
+	}
+
+	private static long millis(long from, long to) {
+		return (to - from) / 1000000;
+	}
+
+}
@@ -17,7 +17,9 @@ import junit.framework.JUnit4TestAdapter;
 import org.junit.Test;
 
 import javax.script.ScriptEngine;
+import javax.script.ScriptException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class ClojureScriptEngineFactoryTest {
 
@@ -180,6 +182,22 @@ public class ClojureScriptEngineFactoryTest {
 		Assert.assertEquals("(foo 1 2 3)\n(bar a b)\n(if true true false)\n", program);
 	}
 
+	@Test
+	public void getParameter() {
+		ClojureScriptEngineFactory f = new ClojureScriptEngineFactory();
+		Assert.assertEquals("Clojure", f.getParameter(ScriptEngine.ENGINE));
+		Assert.assertEquals("Clojure", f.getParameter(ScriptEngine.LANGUAGE));
+		Assert.assertEquals("1.8.0", f.getParameter(ScriptEngine.LANGUAGE_VERSION));
+		Assert.assertEquals("classes", f.getParameter("clojure.compile.path"));
+		Assert.assertNull(f.getParameter("no.such.parameter"));
+	}
+
+	@Test
+	public void getParameter_Threading() {
+		ClojureScriptEngineFactory f = new ClojureScriptEngineFactory();
+		Assert.assertEquals("MULTITHREADED", f.getParameter("THREADING"));
+	}
+
 	@Test
 	public void getScriptEngine_NotNull() {
 		ClojureScriptEngineFactory f = new ClojureScriptEngineFactory();
@@ -194,6 +212,70 @@ public class ClojureScriptEngineFactoryTest {
 		Assert.assertEquals(ClojureScriptEngine.class, engine.getClass());
 	}
 
+	@Test
+	public void getScriptEngine_Tenants() throws ScriptException {
+		ClojureScriptEngineFactory f = new ClojureScriptEngineFactory();
+		ScriptEngine a = f.getScriptEngine("tenant-a");
+		ScriptEngine b = f.getScriptEngine("tenant-b");
+		ScriptEngine a2 = f.getScriptEngine("tenant-a");
+
+		a.eval("(def tenant-x :a)");
+		b.eval("(def tenant-x :b)");
+		Assert.assertEquals("a", a2.eval("(name tenant-x)"));
+		Assert.assertEquals("b", b.eval("(name tenant-x)"));
+		Assert.assertEquals(Boolean.FALSE,
+			f.getScriptEngine().eval("(boolean (resolve 'user/tenant-x))"));
+
+		Assert.assertNotSame(ClojureScriptEngine.class, a.getClass());
+		Assert.assertSame(a.getClass(), a2.getClass());
+		Assert.assertTrue(f.getRuntimeClassCount(a) > 0);
+		Assert.assertTrue(f.getRuntimeFootprint(a) > 0);
+		Assert.assertEquals(0L, f.getRuntimeFootprint(f.getScriptEngine()));
+		Assert.assertTrue(f.releaseTenant("tenant-a"));
+		Assert.assertEquals(1, f.getTenants().size());
+	}
+
+	@Test
+	public void getScriptEngine_Isolated() throws ScriptException {
+		ClojureScriptEngineFactory f = new ClojureScriptEngineFactory();
+		f.setIsolated(true);
+		ScriptEngine a = f.getScriptEngine();
+		ScriptEngine b = f.getScriptEngine();
+		a.eval("(require 'clojure.string) (def isolated-x 1)");
+		Assert.assertEquals("A", a.eval("(clojure.string/upper-case \"a\")"));
+		Assert.assertEquals(Boolean.FALSE, b.eval("(boolean (resolve 'user/isolated-x))"));
+	}
+
+	@Test
+	public void preboot() throws Exception {
+		ClojureScriptEngineFactory f = new ClojureScriptEngineFactory();
+		f.preboot("clojure.set", " clojure.walk");
+		f.preboot("clojure.data");
+		Assert.assertTrue(f.awaitBoot(60, TimeUnit.SECONDS));
+		Assert.assertNull(f.getBootFailure());
+		Assert.assertTrue(f.getBootNanos() >= 0);
+		Assert.assertTrue(f.getPreloadNanos() >= 0);
+
+		ScriptEngine engine = f.getScriptEngine();
+		Assert.assertEquals(Boolean.TRUE, engine.eval("(boolean (find-ns 'clojure.walk))"));
+	}
+
+	@Test
+	public void preboot_RetryAfterFailure() throws Exception {
+		ClojureScriptEngineFactory f = new ClojureScriptEngineFactory();
+		f.preboot("no.such.namespace");
+		Assert.assertFalse(f.awaitBoot(60, TimeUnit.SECONDS));
+		Assert.assertNotNull(f.getBootFailure());
+
+		f.preboot("clojure.set");
+		Assert.assertTrue(f.awaitBoot(60, TimeUnit.SECONDS));
+		Assert.assertNull(f.getBootFailure());
+
+		ClojureScriptEngineFactory other = new ClojureScriptEngineFactory();
+		Assert.assertFalse(other.awaitBoot(1, TimeUnit.SECONDS));
+		Assert.assertEquals(-1L, other.getBootNanos());
+	}
+
     /*+----------------------------------------------------------------------+
 	  |                                                                      |
 	  | Negative tests.                                                      |
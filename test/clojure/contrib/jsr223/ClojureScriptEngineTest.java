@@ -13,13 +13,28 @@
 package clojure.contrib.jsr223;
 
 
+import clojure.lang.IFn;
+import clojure.lang.Keyword;
+import clojure.lang.RT;
+import clojure.lang.Var;
 import junit.framework.JUnit4TestAdapter;
 import org.junit.Assert;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.script.*;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class ClojureScriptEngineTest {
 
@@ -89,7 +104,75 @@ public class ClojureScriptEngineTest {
 		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
 		Bindings bindings = engine.createBindings();
 		Assert.assertNotNull(bindings);
-		Assert.assertEquals(SimpleBindings.class, bindings.getClass());
+		Assert.assertEquals(NamespaceBindings.class, bindings.getClass());
+	}
+
+	@Test
+	public void bindings_Live() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		Bindings bindings = engine.createBindings();
+		engine.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+
+		bindings.put("live-x", 20);
+		Assert.assertEquals(21L, engine.eval("(inc live-x)"));
+		engine.eval("(def live-y (* 2 live-x))");
+		Assert.assertEquals(40L, bindings.get("live-y"));
+		Assert.assertTrue(bindings.containsKey("live-y"));
+		Assert.assertTrue(bindings.keySet().contains("live-x"));
+		Assert.assertEquals(0, ((ClojureScriptEngine) engine).getAppliedBindingCount());
+	}
+
+	@Test
+	public void bindings_QualifiedAndProperties() {
+		Bindings bindings = new ClojureScriptEngineFactory().getScriptEngine().createBindings();
+		bindings.put("live-ns/z", "zed");
+		bindings.put("clojure.compile.path", "classes");
+		Assert.assertEquals("zed", bindings.get("live-ns/z"));
+		Assert.assertEquals("classes", bindings.get("clojure.compile.path"));
+		Assert.assertEquals("zed", bindings.remove("live-ns/z"));
+		Assert.assertNull(bindings.get("live-ns/z"));
+	}
+
+	@Test
+	public void bindings_Independent() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		Bindings first = engine.createBindings();
+		first.put("own-x", 1);
+		Bindings second = engine.createBindings();
+		Assert.assertTrue(second.isEmpty());
+		Assert.assertNull(second.get("own-x"));
+
+		second.put("own-x", 2);
+		Assert.assertEquals(2L, engine.eval("(inc own-x)", first));
+		Assert.assertEquals(3L, engine.eval("(inc own-x)", second));
+		Assert.assertNull(engine.get("own-x"));
+	}
+
+	@Test
+	public void bindings_Clear() {
+		Bindings bindings = new ClojureScriptEngineFactory().getScriptEngine().createBindings();
+		bindings.put("clear-x", 1);
+		bindings.put("clojure.clear.y", 2);
+		bindings.put("clojure.clear.z", 3);
+		bindings.keySet().remove("clojure.clear.y");
+		Assert.assertFalse(bindings.containsKey("clojure.clear.y"));
+		Assert.assertEquals(2, bindings.size());
+		bindings.clear();
+		Assert.assertTrue(bindings.isEmpty());
+	}
+
+	@Test
+	public void bindings_ReferredVars() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		Bindings bindings = engine.createBindings();
+		Assert.assertFalse(bindings.containsKey("println"));
+		Assert.assertNull(bindings.get("println"));
+		Assert.assertNull(bindings.remove("println"));
+		Assert.assertNull(bindings.remove("inc"));
+		Assert.assertTrue(bindings.isEmpty());
+		Assert.assertNotNull(RT.var("clojure.core", "println").getRawRoot());
+		Assert.assertEquals(2L, engine.eval("(inc 1)", bindings));
+		Assert.assertEquals(3L, engine.eval("(inc 2)"));
 	}
 
 	@Test
@@ -106,6 +189,27 @@ public class ClojureScriptEngineTest {
 		Assert.assertEquals(15L, result);
 	}
 
+	@Test
+	public void eval_Types() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		engine.eval("(defprotocol Shape (area [s]))");
+		engine.eval("(deftype Square [side] Shape (area [_] (* side side)))");
+		engine.eval("(extend-protocol Shape String (area [s] (count s)))");
+		Assert.assertEquals(9L, engine.eval("(area (Square. 3))"));
+		Assert.assertEquals(4, engine.eval("(area \"four\")"));
+	}
+
+	@Test
+	public void compile_Types() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		Compilable compiler = (Compilable) engine;
+		compiler.compile("(defprotocol Solid (volume [s]))").eval();
+		compiler.compile("(deftype Cube [side] Solid (volume [_] (* side side side)))").eval();
+		compiler.compile("(extend-protocol Solid Long (volume [n] n))").eval();
+		Assert.assertEquals(27L, compiler.compile("(volume (Cube. 3))").eval());
+		Assert.assertEquals(5L, compiler.compile("(volume 5)").eval());
+	}
+
 	@Test
 	public void eval_WithStringReader() throws ScriptException {
 		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
@@ -132,6 +236,183 @@ public class ClojureScriptEngineTest {
 		Assert.assertEquals("./scripts/converter.clj", s.replace(File.separatorChar, '/'));
 	}
 
+	@Test
+	public void eval_AppliedBindings() throws ScriptException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("applied", "first");
+		Assert.assertEquals("first", engine.eval("applied"));
+		Assert.assertEquals(1, engine.getAppliedBindingCount());
+		Assert.assertEquals("first", engine.eval("applied"));
+		Assert.assertEquals(0, engine.getAppliedBindingCount());
+		engine.put("applied", "second");
+		Assert.assertEquals("second", engine.eval("applied"));
+		Assert.assertEquals(1, engine.getAppliedBindingCount());
+	}
+
+	@Test
+	public void eval_BindingAfterRemoveNS() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("removed-ns/v", 1);
+		Assert.assertEquals(1, engine.eval("removed-ns/v"));
+		engine.eval("(remove-ns 'removed-ns)");
+		engine.put("removed-ns/v", 2);
+		Assert.assertEquals(2, engine.eval(new StringReader("removed-ns/v")));
+	}
+
+	@Test
+	public void eval_ThreadLocalBindings() throws Exception {
+		final ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("clojure.bindings.thread-local", true);
+		final int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+
+		for (int i = 0; i < threads; i++) {
+			final long id = i;
+			futures.add(executor.submit(new Callable<Integer>() {
+				public Integer call() throws ScriptException {
+					ScriptContext context = new SimpleScriptContext();
+					context.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+					context.setAttribute("tl-id", id, ScriptContext.ENGINE_SCOPE);
+					int errors = 0;
+					for (int n = 0; n < 500; n++) {
+						if (!Long.valueOf(2 * id).equals(engine.eval("(* 2 tl-id)", context)))
+							errors++;
+					}
+					return errors;
+				}
+			}));
+		}
+
+		executor.shutdown();
+		for (Future<Integer> future : futures)
+			Assert.assertEquals(Integer.valueOf(0), future.get());
+	}
+
+	@Test
+	public void eval_ThreadLocalTenants() throws Exception {
+		final ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("clojure.bindings.thread-local", true);
+		engine.eval("(defn tenant-of [] (str tenant))", newContext("tenant", "setup"));
+		Assert.assertFalse(RT.var("user", "tenant").hasRoot());
+
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (final String tenant : new String[] { "alpha", "beta" }) {
+				results.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						ScriptContext context = newContext("tenant", tenant);
+						barrier.await();
+						for (int n = 0; n < 200; n++)
+							if (!tenant.equals(engine.eval("(tenant-of)", context)))
+								return false;
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> result : results)
+				Assert.assertTrue(result.get());
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertFalse(RT.var("user", "tenant").hasRoot());
+	}
+
+	private static ScriptContext newContext(String key, Object value) {
+		ScriptContext context = new SimpleScriptContext();
+		context.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+		context.setAttribute(key, value, ScriptContext.ENGINE_SCOPE);
+		return context;
+	}
+
+	@Test
+	public void eval_Cached() throws ScriptException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		String script = "(defn mid [low high] (/ (+ low high) 2)) (mid 10 20)";
+		Assert.assertEquals(15L, engine.eval(script));
+		Assert.assertEquals(15L, engine.eval(script));
+		Assert.assertEquals(1L, engine.getCacheMissCount());
+		Assert.assertEquals(1L, engine.getCacheHitCount());
+		Assert.assertEquals(1, engine.getCacheSize());
+	}
+
+	@Test
+	public void eval_CachedWithNS() throws ScriptException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		String script = "(ns cache-ns) (def counter (atom 0)) (swap! counter inc)";
+		Assert.assertEquals(1L, engine.eval(script));
+		Assert.assertEquals(1L, engine.eval(script));
+		Assert.assertEquals(2L, engine.eval("(swap! cache-ns/counter inc)"));
+		Assert.assertEquals(1L, engine.getCacheHitCount());
+	}
+
+	@Test
+	public void eval_CacheDisabled() throws ScriptException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("clojure.eval.cache-size", 0);
+		Assert.assertEquals(7L, engine.eval("(+ 3 4)"));
+		Assert.assertEquals(7L, engine.eval("(+ 3 4)"));
+		Assert.assertEquals(0L, engine.getCacheHitCount());
+		Assert.assertEquals(0, engine.getCacheSize());
+	}
+
+	@Test
+	public void eval_CacheEviction() throws ScriptException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("clojure.eval.cache-size", 2);
+		engine.put("clojure.eval.cache-eviction", "lru");
+		engine.eval("(+ 1 1)");
+		engine.eval("(+ 2 2)");
+		engine.eval("(+ 1 1)");
+		engine.eval("(+ 3 3)");
+		Assert.assertEquals(2, engine.getCacheSize());
+		engine.eval("(+ 1 1)");
+		Assert.assertEquals(2L, engine.getCacheHitCount());
+
+		engine.clearCache();
+		engine.put("clojure.eval.cache-eviction", "fifo");
+		engine.eval("(+ 1 1)");
+		engine.eval("(+ 2 2)");
+		engine.eval("(+ 1 1)");
+		engine.eval("(+ 3 3)");
+		engine.eval("(+ 1 1)");
+		Assert.assertEquals(3L, engine.getCacheHitCount());
+	}
+
+	@Test
+	public void eval_WriteBack() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		engine.setBindings(new SimpleBindings(), ScriptContext.GLOBAL_SCOPE);
+		engine.eval("(def wb-x 1)");
+		Assert.assertEquals(1L, engine.get("user/wb-x"));
+		engine.eval("(alter-var-root #'wb-x inc)");
+		Assert.assertEquals(2L, engine.get("user/wb-x"));
+		engine.eval("(ns wb-ns) (def wb-y 3)");
+		Assert.assertEquals(3L, engine.get("wb-ns/wb-y"));
+		Assert.assertNull(engine.get("clojure.core/map"));
+	}
+
+	@Test
+	public void eval_WriteBackDisabled() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		engine.setBindings(new SimpleBindings(), ScriptContext.GLOBAL_SCOPE);
+		engine.put("clojure.bindings.write-back", false);
+		engine.eval("(def wb-off 1)");
+		Assert.assertNull(engine.get("user/wb-off"));
+	}
+
+	@Test
+	public void eval_WriteBackNamespaces() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		engine.setBindings(new SimpleBindings(), ScriptContext.GLOBAL_SCOPE);
+		engine.put("clojure.bindings.write-back.namespaces", "wb-kept");
+		engine.eval("(ns wb-kept) (def a 1) (ns wb-dropped) (def b 2)");
+		Assert.assertEquals(1L, engine.get("wb-kept/a"));
+		Assert.assertNull(engine.get("wb-dropped/b"));
+	}
+
 	@Test
 	public void getInterface() throws ScriptException {
 		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
@@ -183,6 +464,546 @@ public class ClojureScriptEngineTest {
 		Assert.assertEquals(15L, result);
 	}
 
+	@Test
+	public void getFunction() throws ScriptException, NoSuchMethodException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.eval("(ns handle-ns) (defn score ([] 0) ([a] a) ([a b] (+ a b)) ([a b & more] (apply + a b more)))");
+
+		ClojureFunction fn = engine.getFunction("handle-ns/score");
+		Assert.assertEquals("handle-ns/score", fn.getName());
+		Assert.assertEquals(0L, fn.invoke());
+		Assert.assertEquals(5L, fn.invoke(5L));
+		Assert.assertEquals(7L, fn.invoke(3L, 4L));
+		Assert.assertEquals(10L, fn.invoke(1L, 2L, 3L, 4L));
+		Assert.assertEquals(15L, fn.invokeVariadic(1L, 2L, 3L, 4L, 5L));
+
+		engine.eval("(ns handle-ns) (defn score [& xs] -1)");
+		Assert.assertEquals(-1L, fn.invoke(3L, 4L));
+	}
+
+	@Test
+	public void getFunction_Primitive() throws ScriptException, NoSuchMethodException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.eval("(ns prim-ns)" +
+			"(defn sq ^long [^long x] (* x x))" +
+			"(defn plus ^long [^long x ^long y] (+ x y))" +
+			"(defn half ^double [^double x] (/ x 2.0))" +
+			"(defn hyp ^double [^double x ^double y] (Math/sqrt (+ (* x x) (* y y))))" +
+			"(defn boxed [x y] (+ x y))");
+
+		Assert.assertTrue(engine.eval("prim-ns/sq") instanceof IFn.LL);
+		Assert.assertEquals(49L, engine.getFunction("prim-ns/sq").invokeLong(7L));
+		Assert.assertEquals(9L, engine.invokeLong("prim-ns/plus", 4L, 5L));
+		Assert.assertEquals(1.5, engine.invokeDouble("prim-ns/half", 3.0), 0.0);
+		Assert.assertEquals(5.0, engine.invokeDouble("prim-ns/hyp", 3.0, 4.0), 0.0);
+		Assert.assertEquals(9L, engine.invokeLong("prim-ns/boxed", 4L, 5L));
+		Assert.assertEquals(7.5, engine.invokeDouble("prim-ns/boxed", 4.0, 3.5), 0.0);
+
+		engine.eval("(in-ns 'prim-ns) (defn sq ^long [^long x] (- x))");
+		Assert.assertEquals(-7L, engine.invokeLong("prim-ns/sq", 7L));
+		engine.eval("(ns-unmap 'prim-ns 'sq) (in-ns 'prim-ns) (defn sq ^long [^long x] (inc x))");
+		Assert.assertEquals(8L, engine.invokeLong("prim-ns/sq", 7L));
+	}
+
+	@Test
+	public void invokeBatch() throws ScriptException, NoSuchMethodException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("batch-offset", 100L);
+		engine.eval("(def batch-calls (atom 0))" +
+			"(defn batch-score [& xs] (swap! batch-calls inc) (apply + batch-offset xs))");
+
+		List<Object[]> args = new ArrayList<Object[]>();
+		for (long i = 0; i < 6; i++) {
+			Object[] a = new Object[(int) i];
+			Arrays.fill(a, 1L);
+			args.add(a);
+		}
+
+		Object[] results = engine.invokeBatch("batch-score", args);
+		Assert.assertEquals(6, results.length);
+		for (int i = 0; i < results.length; i++)
+			Assert.assertEquals(100L + i, results[i]);
+		Assert.assertEquals(6L, engine.eval("@batch-calls"));
+
+		final List<Object> streamed = new ArrayList<Object>();
+		engine.invokeBatch("batch-score", args, new Consumer<Object>() {
+			public void accept(Object result) {
+				streamed.add(result);
+			}
+		});
+		Assert.assertEquals(Arrays.asList(results), streamed);
+	}
+
+	@Test
+	public void evalAsync() throws Exception {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		engine.put("clojure.async.executor", executor);
+		engine.eval("(def ^:dynamic *async-tenant* :none)");
+
+		StringWriter out = new StringWriter();
+		ScriptContext context = new SimpleScriptContext();
+		context.setBindings(engine.getBindings(ScriptContext.ENGINE_SCOPE), ScriptContext.ENGINE_SCOPE);
+		context.setWriter(out);
+
+		Var tenant = RT.var("user", "*async-tenant*");
+		Var.pushThreadBindings(RT.map(tenant, "acme"));
+		CompletableFuture<Object> future;
+		try {
+			future = engine.evalAsync("(print \"async\") *async-tenant*", context);
+		} finally {
+			Var.popThreadBindings();
+		}
+
+		Assert.assertEquals("acme", future.get(10, TimeUnit.SECONDS));
+		Assert.assertEquals("async", out.toString());
+		Assert.assertEquals(Keyword.intern("none"), executor.submit(new Callable<Object>() {
+			public Object call() {
+				return RT.var("user", "*async-tenant*").deref();
+			}
+		}).get());
+		executor.shutdown();
+	}
+
+	@Test
+	public void invokeAsync() throws Exception {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.eval("(defn async-add [a b] (+ a b))");
+		Assert.assertEquals(5L, engine.invokeAsync("async-add", 2L, 3L).get(10, TimeUnit.SECONDS));
+
+		try {
+			engine.invokeAsync("no-such-async-fn").get(10, TimeUnit.SECONDS);
+			Assert.fail("expected a missing function");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof NoSuchMethodException);
+		}
+		try {
+			engine.invokeAsync("async-add", "a", 1L).get(10, TimeUnit.SECONDS);
+			Assert.fail("expected a failed call");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof ScriptException);
+		}
+	}
+
+	@Test
+	public void invokeFunction_Missing() throws ScriptException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		for (String name : new String[] { "no-such-invoked-fn", "user/no-such-invoked-fn", "no-such-ns/f" }) {
+			try {
+				engine.invokeFunction(name);
+				Assert.fail("expected a missing function");
+			} catch (NoSuchMethodException e) {
+			}
+		}
+		Assert.assertNull(engine.eval("(resolve 'no-such-invoked-fn)"));
+		Assert.assertNull(engine.eval("(find-ns 'no-such-ns)"));
+	}
+
+	@Test
+	public void evalEach() throws ScriptException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		final List<Object> values = new ArrayList<Object>();
+		long count = engine.evalEach(new StringReader("(ns each-ns) (def n 2) {:n n} [n ::k]"), new Predicate<Object>() {
+			public boolean test(Object value) {
+				values.add(value);
+				return true;
+			}
+		});
+
+		Assert.assertEquals(4L, count);
+		Assert.assertEquals(4, values.size());
+		Assert.assertEquals(RT.map(Keyword.intern("n"), 2L), values.get(2));
+		Assert.assertEquals(Keyword.intern("each-ns", "k"), ((List<?>) values.get(3)).get(1));
+	}
+
+	@Test
+	public void evalEach_Stop() throws ScriptException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		final List<Object> values = new ArrayList<Object>();
+		long count = engine.evalEach(new StringReader("1 2 (throw (Exception. \"not reached\")) )("), new Predicate<Object>() {
+			public boolean test(Object value) {
+				values.add(value);
+				return values.size() < 2;
+			}
+		});
+
+		Assert.assertEquals(2L, count);
+		Assert.assertEquals(Arrays.asList((Object) 1L, 2L), values);
+	}
+
+	@Test
+	public void compileOptions() throws Exception {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		String overflow = "(let [x Long/MAX_VALUE] (+ x 1))";
+		try {
+			engine.eval(overflow);
+			Assert.fail("integer overflow");
+		} catch (ScriptException e) {
+		}
+		Assert.assertEquals(Long.MIN_VALUE, engine.compile(overflow,
+			java.util.Collections.singletonMap("clojure.compile.unchecked-math", Boolean.TRUE)).eval());
+
+		engine.put("clojure.compile.unchecked-math", true);
+		Assert.assertEquals(Long.MIN_VALUE, engine.eval(overflow));
+
+		engine.put("clojure.compile.direct-linking", "true");
+		engine.put("clojure.compile.elide-meta", "doc, :added");
+		engine.put("clojure.compile.disable-locals-clearing", true);
+		engine.eval("(defn linked-f \"docs\" [] 1) (defn linked-g [] (linked-f))");
+		Assert.assertEquals(1L, engine.eval("(linked-g)"));
+		engine.eval("(defn linked-f [] 2)");
+		Assert.assertEquals(1L, engine.eval("(linked-g)"));
+		Assert.assertNull(engine.eval("(:doc (meta #'linked-g))"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("(:disable-locals-clearing *compiler-options*)"));
+		Assert.assertEquals(Boolean.FALSE, engine.eval("(boolean (:direct-linking clojure.lang.Compiler/COMPILER_OPTIONS))"));
+	}
+
+	@Test
+	public void bindingTypeHints() throws Exception {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("clojure.bindings.type-hints", true);
+		engine.put("clojure.profile.reflection", true);
+		engine.put("hinted", "abc");
+		Assert.assertEquals(3, engine.eval("(.length hinted)"));
+		Assert.assertEquals(String.class, engine.eval("(:tag (meta #'hinted))"));
+
+		engine.put("hinted", new StringBuilder("abcd"));
+		Assert.assertEquals(4, engine.eval("(.length hinted)"));
+		Assert.assertEquals(CharSequence.class, engine.eval("(:tag (meta #'hinted))"));
+
+		engine.put("hinted", 42L);
+		Assert.assertNull(engine.eval("(:tag (meta #'hinted))"));
+		Assert.assertEquals(42L, engine.eval("hinted"));
+		Assert.assertTrue(engine.getReflectionReport().isEmpty());
+
+		Map<String, Object> types = new java.util.HashMap<String, Object>();
+		types.put("declared", "java.lang.CharSequence");
+		engine.put("clojure.bindings.type-hints", false);
+		engine.put("clojure.bindings.types", types);
+		engine.put("declared", "xy");
+		Assert.assertEquals(CharSequence.class, engine.eval("(:tag (meta #'declared))"));
+		engine.put("untagged", "xy");
+		Assert.assertNull(engine.eval("(:tag (meta #'untagged))"));
+	}
+
+	@Test
+	public void reflectionReport() throws Exception {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("clojure.profile.reflection", true);
+		engine.eval("(defn refl-len [s] (.length s))\n(defn refl-hinted [^String s] (.length s))");
+		engine.compile("(defn refl-upper [s]\n  (.toUpperCase s))").eval();
+		Assert.assertEquals(3, engine.eval("(refl-len \"abc\")"));
+		engine.eval("(dotimes [_ 9] (refl-len \"abc\") (refl-hinted \"abc\"))");
+		engine.eval(new StringReader("(refl-upper \"abc\")"));
+
+		List<Map<String, Object>> report = engine.getReflectionReport();
+		Assert.assertEquals(2, report.size());
+		Assert.assertEquals("user:1:20", report.get(0).get("site"));
+		Assert.assertEquals("(.length s)", report.get(0).get("form"));
+		Assert.assertTrue(report.get(0).get("warning").toString().contains("length"));
+		Assert.assertEquals(10L, report.get(0).get("count"));
+		Assert.assertEquals("user:2:3", report.get(1).get("site"));
+		Assert.assertEquals(1L, report.get(1).get("count"));
+	}
+
+	@Test
+	public void contextNamespaces() throws Exception {
+		final ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.eval("(defn greet [s] (str s \"!\"))");
+		engine.put("clojure.context.namespaces", true);
+
+		final ScriptContext[] contexts = new ScriptContext[2];
+		final String[] values = { "hello", "world" };
+		for (int i = 0; i < 2; i++) {
+			contexts[i] = new SimpleScriptContext();
+			contexts[i].setBindings(engine.createBindings(), ScriptContext.GLOBAL_SCOPE);
+			contexts[i].setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+			contexts[i].setAttribute("x", values[i], ScriptContext.ENGINE_SCOPE);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 2; i++) {
+				final int n = i;
+				results.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						for (int j = 0; j < 200; j++)
+							if (!(values[n] + "!").equals(engine.eval("(greet x)", contexts[n])))
+								return false;
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> result : results)
+				Assert.assertTrue(result.get());
+		} finally {
+			executor.shutdown();
+		}
+
+		String ns = (String) engine.eval("(str *ns*)", contexts[0]);
+		Assert.assertNotEquals("user", ns);
+		Assert.assertEquals("hello", contexts[0].getAttribute(ns + "/x"));
+		Assert.assertNull(contexts[1].getAttribute(ns + "/x"));
+		Assert.assertEquals(Boolean.FALSE, engine.eval("(boolean (find-var 'user/x))"));
+
+		ScriptContext tagged = new SimpleScriptContext();
+		tagged.setAttribute("clojure.context.tag", "tenant.alpha", ScriptContext.ENGINE_SCOPE);
+		Assert.assertEquals("tenant.alpha", engine.eval("(str *ns*)", tagged));
+
+		Assert.assertTrue(engine.releaseContext(contexts[0]));
+		Assert.assertFalse(engine.releaseContext(contexts[0]));
+		Assert.assertEquals(Boolean.FALSE, engine.eval("(boolean (find-ns '" + ns + "))"));
+	}
+
+	@Test
+	public void classCache() throws Exception {
+		File dir = java.nio.file.Files.createTempDirectory("class-cache").toFile();
+		String macro = "(def expansions (atom 0)) (defmacro counted [] (swap! expansions inc) 40)";
+		String script = "(defn scored [x] (+ (counted) x)) (scored (count (re-seq #\"a+\" \"aa-a\")))";
+		ClojureScriptEngineFactory f = new ClojureScriptEngineFactory();
+		f.setIsolated(true);
+
+		ScriptEngine first = f.getScriptEngine();
+		first.put("clojure.eval.class-cache", dir);
+		first.eval(new StringReader(macro));
+		Assert.assertEquals(42L, first.eval(script));
+		first.eval("(deftype CachedType [a])");
+		Assert.assertEquals(1L, first.getClass().getMethod("getClassCacheStoreCount").invoke(first));
+
+		// A new runtime stands for a new JVM: the script's classes are loaded, not compiled.
+		ScriptEngine second = f.getScriptEngine();
+		second.put("clojure.eval.class-cache", dir.getPath());
+		second.eval(new StringReader(macro));
+		Assert.assertEquals(42L, second.eval(script));
+		Assert.assertEquals(42L, second.eval("(scored 2)"));
+		Assert.assertEquals(0L, second.eval("@expansions"));
+		Assert.assertEquals(1L, second.getClass().getMethod("getClassCacheHitCount").invoke(second));
+
+		second.put("clojure.eval.class-cache.max-size", 0);
+		second.eval("(inc 1)");
+		Assert.assertEquals(0, dir.list().length);
+	}
+
+	@Test
+	public void classCache_Corrupt() throws Exception {
+		File dir = java.nio.file.Files.createTempDirectory("class-cache").toFile();
+		String script = "(defn corrupted [x] (* 2 x)) (corrupted 21)";
+		ClojureScriptEngineFactory f = new ClojureScriptEngineFactory();
+		f.setIsolated(true);
+
+		ScriptEngine first = f.getScriptEngine();
+		first.put("clojure.eval.class-cache", dir);
+		Assert.assertEquals(42L, first.eval(script));
+		List<File> files = new ArrayList<File>();
+		for (File entry : dir.listFiles())
+			files.addAll(Arrays.asList(entry.listFiles()));
+		for (File file : files)
+			if (file.getName().endsWith(".class"))
+				java.nio.file.Files.write(file.toPath(), new byte[] { (byte) 0xca, (byte) 0xfe, 0, 1 });
+
+		ScriptEngine second = f.getScriptEngine();
+		second.put("clojure.eval.class-cache", dir);
+		Assert.assertEquals(42L, second.eval(script));
+		Assert.assertEquals(0L, second.getClass().getMethod("getClassCacheHitCount").invoke(second));
+		Assert.assertEquals(1L, second.getClass().getMethod("getClassCacheStoreCount").invoke(second));
+	}
+
+	@Test
+	public void bufferedOutput() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		final AtomicInteger writes = new AtomicInteger();
+		StringWriter out = new StringWriter() {
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+				writes.incrementAndGet();
+				super.write(cbuf, off, len);
+			}
+		};
+		engine.getContext().setWriter(out);
+		engine.put("clojure.output.buffer-size", 8192);
+
+		engine.eval("(dotimes [i 100] (println i))");
+		Assert.assertEquals(1, writes.get());
+		Assert.assertTrue(out.toString().endsWith("98\n99\n"));
+
+		engine.put("clojure.output.buffer-size", 16);
+		engine.eval("(print \"0123456789012345678901234567890123456789\")");
+		Assert.assertEquals(4, writes.get());
+		Assert.assertTrue(out.toString().endsWith("99\n0123456789012345678901234567890123456789"));
+	}
+
+	@Test
+	public void bufferedOutput_Channel() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		engine.put("clojure.output.buffer-size", 3);
+		engine.put("clojure.output.channel", java.nio.channels.Channels.newChannel(bytes));
+
+		String text = "aé😀b😀";
+		engine.put("text", text);
+		engine.eval("(print text) (flush)");
+		Assert.assertEquals(text, new String(bytes.toByteArray(), java.nio.charset.StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void bufferedOutput_WriteError() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		final boolean[] broken = { true };
+		final StringWriter out = new StringWriter();
+		Writer failing = new Writer() {
+			public void write(char[] cbuf, int off, int len) throws IOException {
+				if (broken[0])
+					throw new IOException("broken pipe");
+				out.write(cbuf, off, len);
+			}
+			public void flush() {
+			}
+			public void close() {
+			}
+		};
+		engine.getContext().setWriter(failing);
+		engine.put("clojure.output.buffer-size", 16);
+		try {
+			engine.eval("(print \"lost\") 1");
+			Assert.fail("expected a write error");
+		} catch (ScriptException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+
+		broken[0] = false;
+		Assert.assertEquals(2L, engine.eval("(print \"kept\") 2"));
+		Assert.assertEquals("kept", out.toString());
+	}
+
+	@Test
+	public void metrics() throws Exception {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		final List<String> events = new ArrayList<String>();
+		engine.put("clojure.metrics.listener", new MetricsListener() {
+			public void evaluated(long compileNanos, long executeNanos) {
+				events.add(compileNanos > 0 ? "compiled" : "cached");
+			}
+			public void invoked(String function, long nanos) {
+				events.add("invoked " + function);
+			}
+			public void failed(Exception cause) {
+				events.add("failed");
+			}
+		});
+
+		engine.eval("(defn metered [x] (Thread/sleep 1) x)");
+		engine.eval("(metered 1)");
+		engine.eval("(metered 1)");
+		engine.invokeFunction("metered", 2);
+		try {
+			engine.eval("(throw (RuntimeException. \"metered\"))");
+		} catch (ScriptException e) {
+		}
+
+		Assert.assertEquals(Arrays.asList("compiled", "compiled", "cached", "invoked metered", "failed"), events);
+		EngineMetrics metrics = engine.getMetrics();
+		Assert.assertEquals(3L, metrics.getEvalCount());
+		Assert.assertEquals(1L, metrics.getInvokeCount());
+		Assert.assertEquals(1L, metrics.getErrorCount());
+		Assert.assertTrue(metrics.getExecuteTime().get("maxNanos") >= 1000000L);
+		Assert.assertEquals(Long.valueOf(1), metrics.getInvokeTime().get("metered").get("count"));
+		Assert.assertEquals(Long.valueOf(5), metrics.getApplyBindingsTime().get("count"));
+
+		ObjectName name = metrics.register("metrics-test");
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Assert.assertEquals(3L, server.getAttribute(name, "EvalCount"));
+			Assert.assertNotNull(server.getAttribute(name, "InvokeTime"));
+		} finally {
+			metrics.unregister();
+		}
+		metrics.reset();
+		Assert.assertEquals(0L, metrics.getEvalCount());
+	}
+
+	@Test
+	public void namespaceEviction() throws Exception {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.eval("(ns evict.alpha) (def big (vec (range 1000)))");
+		engine.eval("(ns evict.beta) (def small 1)");
+		Assert.assertEquals(Boolean.TRUE, engine.eval("(contains? (loaded-libs) 'evict.alpha)"));
+		Assert.assertEquals(0, engine.evictIdleNamespaces());
+
+		Map<String, Map<String, Object>> report = new java.util.HashMap<String, Map<String, Object>>();
+		for (Map<String, Object> entry : engine.getNamespaceReport())
+			report.put((String) entry.get("namespace"), entry);
+		Assert.assertEquals(1, report.get("evict.alpha").get("vars"));
+		Assert.assertTrue((Long) report.get("evict.alpha").get("bytes") > (Long) report.get("evict.beta").get("bytes") + 16000);
+		Assert.assertEquals(Boolean.TRUE, report.get("evict.alpha").get("evictable"));
+		Assert.assertEquals(Boolean.FALSE, report.get("user").get("evictable"));
+
+		engine.put("clojure.namespaces.max-count", 1);
+		Assert.assertEquals(1, engine.evictIdleNamespaces());
+		Assert.assertEquals(Boolean.FALSE, engine.eval("(boolean (find-ns 'evict.alpha))"));
+		Assert.assertEquals(Boolean.FALSE, engine.eval("(contains? (loaded-libs) 'evict.alpha)"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("(boolean (find-ns 'evict.beta))"));
+
+		engine.put("clojure.namespaces.max-count", null);
+		engine.put("clojure.namespaces.idle-timeout", 50);
+		Thread.sleep(100);
+		Assert.assertEquals(1, engine.evictIdleNamespaces());
+		Assert.assertEquals(Boolean.FALSE, engine.eval("(boolean (find-ns 'evict.beta))"));
+		Assert.assertEquals(2L, engine.getEvictedNamespaceCount());
+	}
+
+	@Test
+	public void namespaceEviction_LiveBindings() throws Exception {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		Bindings bindings = engine.createBindings();
+		bindings.put("held-x", 1);
+		ScriptContext context = new SimpleScriptContext();
+		context.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		Assert.assertEquals(2L, engine.eval("(inc held-x)", bindings));
+		engine.eval("(def ctx-y 5)", context);
+		engine.eval("(ns evict.gamma) (def g 1)");
+
+		engine.put("clojure.namespaces.max-count", 0);
+		Assert.assertEquals(1, engine.evictIdleNamespaces());
+		Assert.assertEquals(Boolean.FALSE, engine.eval("(boolean (find-ns 'evict.gamma))"));
+		Assert.assertEquals(2L, engine.eval("(inc held-x)", bindings));
+		Assert.assertEquals(6L, engine.eval("(inc ctx-y)", context));
+	}
+
+	@Test
+	public void classRetention() throws Exception {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.put("clojure.eval.cache-size", 0);
+		engine.put("clojure.eval.class-retention", 2);
+		engine.eval("(deftype Retained [x])");
+		for (int i = 0; i < 40; i++)
+			Assert.assertEquals((long) i, engine.eval("((fn [] " + i + "))"));
+		Assert.assertEquals(7L, engine.eval("(.x (Retained. 7))"));
+
+		EngineMetrics metrics = engine.getMetrics();
+		Assert.assertEquals(42L, metrics.getCreatedScriptClassLoaderCount());
+		Assert.assertTrue(metrics.getLoadedClassCount() > 0);
+		Assert.assertTrue(metrics.getMetaspaceUsed() != 0);
+		for (int i = 0; i < 20 && metrics.getScriptClassLoaderCount() > 20; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		Assert.assertTrue(metrics.getScriptClassLoaderCount() <= 20);
+	}
+
+	@Test(expected=NoSuchMethodException.class)
+	public void getFunction_NotFound() throws ScriptException, NoSuchMethodException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.getFunction("no-such-ns/no-such-fn");
+	}
+
+	@Test(expected=ScriptException.class)
+	public void getFunction_Throws() throws ScriptException, NoSuchMethodException {
+		ClojureScriptEngine engine = (ClojureScriptEngine) new ClojureScriptEngineFactory().getScriptEngine();
+		engine.eval("(defn handle-fails [x] (throw (IllegalStateException. \"boom\")))");
+		engine.getFunction("handle-fails").invoke(1);
+	}
+
 	@Test
 	public void invokeMethod() throws ScriptException, NoSuchMethodException {
 		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
@@ -212,6 +1033,69 @@ public class ClojureScriptEngineTest {
 		Assert.assertEquals(ClojureScriptEngine.class, result.getEngine().getClass());
 		Assert.assertEquals(15L, result.eval());
 	}
+
+	@Test
+	public void compile_RunsOnEval() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		AtomicInteger counter = new AtomicInteger();
+		engine.put("counter", counter);
+		CompiledScript result = ((Compilable) engine).compile("(.incrementAndGet counter)");
+
+		Assert.assertEquals(0, counter.get());
+		Assert.assertEquals(1, result.eval());
+		Assert.assertEquals(2, result.eval());
+	}
+
+	@Test
+	public void compile_MacroCallsHelper() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		String script = "(defn mhelper [] 5) (defmacro mm [] (mhelper)) (mm)";
+		engine.eval("(ns-unmap 'user 'mhelper)");
+		CompiledScript result = ((Compilable) engine).compile(script);
+		Assert.assertEquals(5L, result.eval());
+		Assert.assertEquals(5L, result.eval());
+		Assert.assertEquals(5L, engine.eval(script));
+	}
+
+	@Test
+	public void compile_TypesInScript() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		String script = "(defprotocol Sized (size-of [x])) (deftype Box [n] Sized (size-of [_] n))"
+		              + " (extend-protocol Sized String (size-of [s] (count s)))"
+		              + " (+ (size-of (Box. 3)) (size-of \"four\"))";
+		CompiledScript result = ((Compilable) engine).compile(script);
+		Assert.assertEquals(7L, result.eval());
+		Assert.assertEquals(7L, result.eval());
+	}
+
+	@Test
+	public void compile_ErrorRunsNothing() throws ScriptException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		engine.eval("(def compile-runs (atom 0))");
+		String[] scripts = {
+			"(swap! compile-runs inc) (defn compile-f [] 1) (no-such-fn 1)",
+			"(swap! compile-runs inc) (let [x] x)",
+			"(swap! compile-runs inc) (+ 1" };
+		for (String script : scripts) {
+			try {
+				((Compilable) engine).compile(script);
+				Assert.fail("expected a ScriptException");
+			} catch (ScriptException e) {
+				Assert.assertEquals(0L, engine.eval("@compile-runs"));
+			}
+		}
+	}
+
+	@Test
+	public void compile_WithNS() throws ScriptException, NoSuchMethodException {
+		ScriptEngine engine = new ClojureScriptEngineFactory().getScriptEngine();
+		String script = "(ns compiled-ns) (defn twice [x] (* 2 x)) (twice 21)";
+		CompiledScript result = ((Compilable) engine).compile(script);
+
+		Assert.assertEquals(42L, result.eval());
+		Assert.assertEquals(42L, result.eval(new SimpleScriptContext()));
+		Assert.assertEquals(8L, ((Invocable) engine).invokeFunction("compiled-ns/twice", 4));
+	}
 /*
 	@Test
 	public void compileLibrary() throws ScriptException {
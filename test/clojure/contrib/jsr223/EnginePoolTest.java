@@ -0,0 +1,199 @@
+/*
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ *
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ *
+ * You must not remove this notice, or any other, from this software.
+ */
+package clojure.contrib.jsr223;
+
+import junit.framework.Assert;
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class EnginePoolTest {
+
+	/**
+	 * Runs the test suite in this class from the command line.
+	 *
+	 * @param args	Arguments are ignored.
+	 */
+	public static void main(String[] args) {
+		org.junit.runner.JUnitCore.runClasses(EnginePoolTest.class);
+	}
+
+	/**
+	 * Provides compatibility with 3.x versions of JUnit.
+	 *
+	 * @return A 3.x-compatible test suite.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(EnginePoolTest.class);
+	}
+
+    /*+----------------------------------------------------------------------+
+	  |                                                                      |
+	  | Test borrowing and releasing engines.                                |
+	  |                                                                      |
+	  +----------------------------------------------------------------------+*/
+
+	@Test
+	public void borrow_Prewarmed() throws Exception {
+		EnginePool pool = new EnginePool(new ClojureScriptEngineFactory(), 2, 4, false);
+		Assert.assertEquals(2, pool.getSize());
+		Assert.assertEquals(2, pool.getIdleCount());
+
+		ScriptEngine engine = pool.borrow();
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertEquals(3L, engine.eval("(+ 1 2)"));
+		pool.release(engine);
+		Assert.assertEquals(2, pool.getIdleCount());
+		pool.close();
+	}
+
+	@Test
+	public void release_ResetsDefinitions() throws Exception {
+		EnginePool pool = new EnginePool(new ClojureScriptEngineFactory(), 1, 1, false);
+		ScriptEngine engine = pool.borrow();
+		engine.eval("(ns pool.reset.test) (def x 1)");
+		engine.eval("(def user-pool-var 42)");
+		engine.put("pool-binding", 7);
+		pool.release(engine);
+
+		engine = pool.borrow();
+		Assert.assertNull(engine.eval("(find-ns 'pool.reset.test)"));
+		Assert.assertNull(engine.eval("(resolve 'user-pool-var)"));
+		Assert.assertNull(engine.get("pool-binding"));
+		Assert.assertEquals(1L, pool.getResetCount());
+		pool.release(engine);
+		pool.close();
+	}
+
+	@Test
+	public void release_RequireAgain() throws Exception {
+		EnginePool pool = new EnginePool(new ClojureScriptEngineFactory(), 1, 1, false);
+		String script = "(require 'clojure.zip) (clojure.zip/node (clojure.zip/down (clojure.zip/vector-zip [7])))";
+		ScriptEngine engine = pool.borrow();
+		Assert.assertEquals(7L, engine.eval(script));
+		engine.eval("(ns pool.lib.test) (dosync (commute @#'clojure.core/*loaded-libs* conj 'pool.lib.test))");
+		pool.release(engine);
+
+		engine = pool.borrow();
+		Assert.assertEquals(7L, engine.eval(script));
+		Assert.assertEquals(Boolean.FALSE, engine.eval("(contains? (loaded-libs) 'pool.lib.test)"));
+		pool.release(engine);
+		pool.close();
+	}
+
+	@Test
+	public void borrow_GrowsToMax() throws Exception {
+		EnginePool pool = new EnginePool(new ClojureScriptEngineFactory(), 0, 2, false);
+		Assert.assertEquals(0, pool.getSize());
+		ScriptEngine e1 = pool.borrow();
+		ScriptEngine e2 = pool.borrow();
+		Assert.assertNotSame(e1, e2);
+		Assert.assertEquals(2, pool.getSize());
+		pool.release(e1);
+		pool.release(e2);
+		pool.close();
+	}
+
+	@Test
+	public void borrow_Timeout() throws Exception {
+		EnginePool pool = new EnginePool(new ClojureScriptEngineFactory(), 1, 1, false);
+		ScriptEngine engine = pool.borrow();
+		try {
+			pool.borrow(10, TimeUnit.MILLISECONDS);
+			Assert.fail("expected a timeout");
+		} catch (TimeoutException e) {
+			Assert.assertEquals(1L, pool.getTimeoutCount());
+		}
+		pool.release(engine);
+		Assert.assertEquals(1L, pool.getBorrowCount());
+		pool.close();
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void release_Foreign() throws Exception {
+		EnginePool pool = new EnginePool(new ClojureScriptEngineFactory(), 1, 1, false);
+		pool.release(new ClojureScriptEngineFactory().getScriptEngine());
+	}
+
+	@Test
+	public void release_SharedBaseline() throws Exception {
+		EnginePool pool = new EnginePool(new ClojureScriptEngineFactory(), 1, 2, false);
+		ScriptEngine e1 = pool.borrow();
+		e1.eval("(def leaked-secret 42)");
+		ScriptEngine e2 = pool.borrow();
+		pool.release(e1);
+		Assert.assertEquals(42L, e2.eval("leaked-secret"));
+		pool.release(e2);
+
+		ScriptEngine engine = pool.borrow();
+		Assert.assertNull(engine.eval("(resolve 'leaked-secret)"));
+		pool.release(engine);
+		engine = pool.borrow();
+		Assert.assertNull(engine.eval("(resolve 'leaked-secret)"));
+		pool.release(engine);
+		pool.close();
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void release_Twice() throws Exception {
+		EnginePool pool = new EnginePool(new ClojureScriptEngineFactory(), 1, 2, false);
+		ScriptEngine engine = pool.borrow();
+		pool.release(engine);
+		try {
+			pool.release(engine);
+		} finally {
+			Assert.assertEquals(1, pool.getIdleCount());
+			Assert.assertEquals(1, pool.getSize());
+			pool.close();
+		}
+	}
+
+	@Test
+	public void borrow_CreateFails() throws Exception {
+		ClojureScriptEngineFactory f = new ClojureScriptEngineFactory() {
+			public ScriptEngine getScriptEngine() {
+				throw new IllegalStateException("no engine");
+			}
+		};
+		EnginePool pool = new EnginePool(f, 0, 2, false);
+		try {
+			pool.borrow();
+			Assert.fail("expected a failure");
+		} catch (IllegalStateException e) {
+		}
+		Assert.assertEquals(0, pool.getSize());
+		pool.close();
+	}
+
+	@Test
+	public void borrow_Isolated() throws Exception {
+		ClojureScriptEngineFactory f = new ClojureScriptEngineFactory();
+		EnginePool pool = new EnginePool(f, 2, 2, true);
+		ScriptEngine e1 = pool.borrow();
+		ScriptEngine e2 = pool.borrow();
+		e1.eval("(def pool-isolated 1)");
+		Assert.assertEquals(1L, e1.eval("pool-isolated"));
+		try {
+			e2.eval("pool-isolated");
+			Assert.fail("expected an unresolved symbol");
+		} catch (ScriptException e) {
+		}
+		pool.release(e1);
+		pool.release(e2);
+		pool.close();
+		Assert.assertEquals(0, pool.getSize());
+	}
+
+}
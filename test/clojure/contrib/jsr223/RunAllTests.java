@@ -23,7 +23,8 @@ import org.junit.runners.Suite.SuiteClasses;
 @RunWith(Suite.class)
 @SuiteClasses({
     ClojureScriptEngineFactoryTest.class,
-    ClojureScriptEngineTest.class
+    ClojureScriptEngineTest.class,
+    EnginePoolTest.class
 })
 
 /**